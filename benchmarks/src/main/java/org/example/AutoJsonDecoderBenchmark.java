@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.JsonDecoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes a batch of json datums per op, with {@link AutoJsonDecoder} and with Avro's
+ * {@link JsonDecoder} under a resolving {@link GenericDatumReader}.
+ * <p>
+ *     Avro's decoder can only read unions as {t:v}: for the bare union shape it reads
+ *     the {t:v} json of the same datums.
+ *     Run with {@code java -jar target/benchmarks.jar -prof gc}, or this class's main.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AutoJsonDecoderBenchmark {
+    static final int BATCH = 16;
+    static final long SEED = 20240501L;
+    
+    @Param({ "WIDE", "NESTED", "ARRAYS", "MAPS", "UNIONS_TAGGED", "UNIONS_BARE" })
+    String payload;
+    
+    @Param({ "false", "true" })
+    boolean breakAmbiguity;
+    
+    Schema schema;
+    byte[] json;       // what AutoJsonDecoder reads
+    byte[] taggedJson; // what JsonDecoder reads
+    GenericDatumReader<Object> datumReader;
+    AutoJsonDatumReader<Object> autoJsonDatumReader;
+    AutoJsonDecoder autoJsonDecoder;
+    AutoJsonDecoder adaptiveDecoder;
+    AutoJsonDecoder genericDecoder;
+    JsonDecoder jsonDecoder;
+    
+    @Setup
+    public void setup() throws IOException {
+        Payloads.Shape shape = Payloads.Shape.valueOf(payload.replaceFirst("_.*", ""));
+        schema = shape.schema;
+        List<Object> datums = Payloads.datums(shape, BATCH, SEED);
+        taggedJson = Payloads.tagged(schema, datums);
+        json = payload.endsWith("_BARE") ? Payloads.bare(datums) : taggedJson;
+        datumReader = new GenericDatumReader<>(schema, schema);
+        autoJsonDatumReader = new AutoJsonDatumReader<>(schema);
+        jsonDecoder = DecoderFactory.get().jsonDecoder(schema, new ByteArrayInputStream(taggedJson));
+    }
+    
+    @Benchmark
+    public void autoJson(Blackhole blackhole) throws IOException {
+        decode(false, blackhole);
+    }
+    
+    @Benchmark
+    public void autoJsonStreaming(Blackhole blackhole) throws IOException {
+        decode(true, blackhole);
+    }
+    
+    @Benchmark
+    public void autoJsonDatumReader(Blackhole blackhole) throws IOException {
+        decode(true, false, autoJsonDatumReader, blackhole);
+    }
+    
+    /**
+     * Rule#12 tries the union branch that matched most often first.
+     */
+    @Benchmark
+    public void autoJsonAdaptive(Blackhole blackhole) throws IOException {
+        decode(false, true, datumReader, blackhole);
+    }
+    
+    /**
+     * The generic rules throughout, rather than what the plan resolved for each schema node, see
+     * {@code AutoJsonDecoder.specialized(boolean)}; compare with {@link #autoJson}.
+     */
+    @Benchmark
+    public void autoJsonGeneric(Blackhole blackhole) throws IOException {
+        genericDecoder = AutoJsonDecoderFactory.get().autoJsonDecoder(schema, json, genericDecoder);
+        genericDecoder.breakAmbiguity(breakAmbiguity).specialized(false);
+        for (int i = 0; i < BATCH; i++) {
+            blackhole.consume(datumReader.read(null, genericDecoder));
+        }
+    }
+    
+    private void decode(boolean streaming, Blackhole blackhole) throws IOException {
+        decode(streaming, false, datumReader, blackhole);
+    }
+    
+    private void decode(boolean streaming, boolean adaptive, DatumReader<Object> datumReader, Blackhole blackhole) throws IOException {
+        AutoJsonDecoder decoder;
+        if (adaptive) { // a decoder of its own, which keeps what it learned across batches
+            decoder = AutoJsonDecoderFactory.get().autoJsonDecoder(schema, json, adaptiveDecoder);
+            if (decoder != adaptiveDecoder) {
+                adaptiveDecoder = decoder.adaptive(true);
+            }
+        } else {
+            decoder = autoJsonDecoder = AutoJsonDecoderFactory.get().autoJsonDecoder(schema, json, autoJsonDecoder);
+        }
+        decoder.breakAmbiguity(breakAmbiguity).streaming(streaming);
+        for (int i = 0; i < BATCH; i++) {
+            blackhole.consume(datumReader.read(null, decoder));
+        }
+    }
+    
+    /**
+     * The baseline; {@code breakAmbiguity} doesn't apply.
+     */
+    @Benchmark
+    public void avroJsonDecoder(Blackhole blackhole) throws IOException {
+        jsonDecoder.configure(new ByteArrayInputStream(taggedJson));
+        for (int i = 0; i < BATCH; i++) {
+            blackhole.consume(datumReader.read(null, jsonDecoder));
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+            .include(AutoJsonDecoderBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build()).run();
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.io.Encoder;
+import org.apache.avro.io.EncoderFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Deterministic benchmark payloads: a schema per shape, and json of random datums from a fixed seed.
+ */
+final class Payloads {
+    enum Shape {
+        WIDE(wideSchema(), 0, 1),        // 200 scalar fields
+        NESTED(NESTED_SCHEMA, 0, 20),    // optional records, 20 deep
+        ARRAYS(ARRAYS_SCHEMA, 200, 1),   // 200 elements each
+        MAPS(MAPS_SCHEMA, 100, 1),       // 100 entries each
+        UNIONS(UNIONS_SCHEMA, 100, 1);   // 100 union values
+        
+        final Schema schema;
+        final int size;     // of arrays and maps
+        final int depth;    // of optional records
+        
+        Shape(String schema, int size, int depth) {
+            this.schema = new Schema.Parser().parse(schema);
+            this.size = size;
+            this.depth = depth;
+        }
+    }
+    
+    private static final String NESTED_SCHEMA = """
+        {"type": "record", "name": "Node", "fields": [
+          {"name": "value", "type": "int"},
+          {"name": "name", "type": "string"},
+          {"name": "next", "type": ["null", "Node"]}
+        ]}""";
+    
+    private static final String POINT_SCHEMA = """
+        {"type": "record", "name": "Point", "fields": [
+          {"name": "x", "type": "double"}, {"name": "y", "type": "double"}
+        ]}""";
+    
+    private static final String ARRAYS_SCHEMA = """
+        {"type": "record", "name": "Arrays", "fields": [
+          {"name": "longs", "type": {"type": "array", "items": "long"}},
+          {"name": "names", "type": {"type": "array", "items": "string"}},
+          {"name": "points", "type": {"type": "array", "items": %s}}
+        ]}""".formatted(POINT_SCHEMA);
+    
+    private static final String MAPS_SCHEMA = """
+        {"type": "record", "name": "Maps", "fields": [
+          {"name": "counts", "type": {"type": "map", "values": "int"}},
+          {"name": "labels", "type": {"type": "map", "values": "string"}},
+          {"name": "points", "type": {"type": "map", "values": %s}}
+        ]}""".formatted(POINT_SCHEMA);
+    
+    // no two number branches: a bare number would take the first one;
+    // no map branch: {t:v} would be ambiguous with a map of one entry
+    private static final String UNIONS_SCHEMA = """
+        {"type": "record", "name": "Unions", "fields": [
+          {"name": "values", "type": {"type": "array", "items":
+            ["null", "long", "string", "boolean", %s,
+             {"type": "record", "name": "Label", "fields": [{"name": "text", "type": "string"}]}]}}
+        ]}""".formatted(POINT_SCHEMA);
+    
+    private static String wideSchema() {
+        String[] types = { "\"int\"", "\"long\"", "\"double\"", "\"string\"", "\"boolean\"", "[\"null\", \"string\"]" };
+        StringBuilder sb = new StringBuilder("{\"type\": \"record\", \"name\": \"Wide\", \"fields\": [");
+        for (int i = 0; i < 200; i++) {
+            sb.append(i == 0 ? "" : ", ").append("{\"name\": \"f").append(i).append("\", \"type\": ")
+                .append(types[i % types.length]).append('}');
+        }
+        return sb.append("]}").toString();
+    }
+    
+    static List<Object> datums(Shape shape, int count, long seed) {
+        Random random = new Random(seed);
+        List<Object> datums = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            datums.add(datum(shape, shape.schema, random, 0));
+        }
+        return datums;
+    }
+    
+    private static Object datum(Shape shape, Schema schema, Random random, int depth) {
+        switch (schema.getType()) {
+            case RECORD:
+                GenericData.Record record = new GenericData.Record(schema);
+                for (Schema.Field field : schema.getFields()) {
+                    record.put(field.pos(), datum(shape, field.schema(), random, depth + 1));
+                }
+                return record;
+            case UNION:
+                List<Schema> branches = schema.getTypes();
+                int index = shape == Shape.NESTED
+                    ? (depth < shape.depth ? branches.size() - 1 : 0) // deep, then null
+                    : random.nextInt(branches.size());
+                return datum(shape, branches.get(index), random, depth);
+            case ARRAY:
+                List<Object> list = new ArrayList<>();
+                for (int i = 0; i < shape.size; i++) {
+                    list.add(datum(shape, schema.getElementType(), random, depth));
+                }
+                return list;
+            case MAP:
+                Map<String, Object> map = new HashMap<>();
+                for (int i = 0; i < shape.size; i++) {
+                    map.put("k" + i, datum(shape, schema.getValueType(), random, depth));
+                }
+                return map;
+            case STRING:
+                return "s" + random.nextInt(100000);
+            case INT:
+                return random.nextInt();
+            case LONG:
+                return random.nextLong();
+            case DOUBLE:
+                return random.nextInt(100000) / 8.0;
+            case BOOLEAN:
+                return random.nextBoolean();
+            case NULL:
+                return null;
+            default:
+                throw new IllegalArgumentException("Not generated: " + schema.getType());
+        }
+    }
+    
+    /**
+     * Avro's json encoding, with unions as {t:v}; a datum per line.
+     */
+    static byte[] tagged(Schema schema, List<Object> datums) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GenericDatumWriter<Object> writer = new GenericDatumWriter<>(schema);
+        for (Object datum : datums) {
+            Encoder encoder = EncoderFactory.get().jsonEncoder(schema, out);
+            writer.write(datum, encoder);
+            encoder.flush();
+            out.write('\n');
+        }
+        return out.toByteArray();
+    }
+    
+    /**
+     * Plain json, with bare union values; a datum per line.
+     */
+    static byte[] bare(List<Object> datums) {
+        StringBuilder sb = new StringBuilder();
+        for (Object datum : datums) {
+            sb.append(GenericData.get().toString(datum)).append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+    
+    private Payloads() {
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import org.apache.avro.AvroTypeException;
+import org.apache.avro.Conversion;
+import org.apache.avro.Conversions;
+import org.apache.avro.LogicalType;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericArray;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericFixed;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.Decoder;
+import org.apache.avro.util.Utf8;
+import org.example.DecodingPlan.Field;
+import org.example.DecodingPlan.Node;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A {@link DatumReader} that builds datums straight from what {@link AutoJsonDecoder} matched,
+ * instead of pulling the values one at a time through the {@link Decoder} calls of a {@code GenericDatumReader}.
+ * <p>
+ *     Reads datums of the decoder's schema, same as {@code GenericDatumReader(schema, schema)} would,
+ *     through the {@link GenericData} model it is given: generic, specific, or reflect with collections for arrays.
+ *     The {@code reuse} datum is reused the same way too.
+ * </p>
+ */
+public class AutoJsonDatumReader<D> implements DatumReader<D> {
+    private final GenericData data;
+    private Schema schema;
+    private DecodingPlan checked; // plan of the last decoder, known to have the schema
+    private AutoJsonDecoder decoder; // of the datum being read
+    
+    public AutoJsonDatumReader(Schema schema) {
+        this(schema, GenericData.get());
+    }
+    
+    public AutoJsonDatumReader(Schema schema, GenericData data) {
+        this.schema = schema;
+        this.data = data;
+    }
+    
+    @Override
+    public void setSchema(Schema schema) {
+        this.schema = schema;
+        this.checked = null;
+    }
+    
+    /**
+     * @param in An {@link AutoJsonDecoder} of the same schema.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public D read(D reuse, Decoder in) throws IOException {
+        if (!(in instanceof AutoJsonDecoder)) {
+            throw new IllegalArgumentException("Expected an AutoJsonDecoder. Got " + in.getClass().getName());
+        }
+        decoder = (AutoJsonDecoder) in;
+        if (decoder.plan != checked) {
+            if (decoder.plan.schema != schema && !decoder.plan.schema.equals(schema)) {
+                throw new AvroTypeException("Expected a decoder of " + schema.getFullName()
+                    + ". Got " + decoder.plan.schema.getFullName());
+            }
+            checked = decoder.plan;
+        }
+        return (D) read(reuse, decoder.plan.root, decoder.plan.leafless ? null : decoder.tape());
+    }
+    
+    private Object read(Object old, Node schema, LeafTape tape) throws IOException {
+        Object datum = readWithoutConversion(old, schema, tape);
+        LogicalType logicalType = schema.schema.getLogicalType();
+        if (logicalType != null) {
+            Conversion<?> conversion = data.getConversionFor(logicalType);
+            if (conversion != null) {
+                return Conversions.convertToLogicalType(datum, schema.schema, logicalType, conversion);
+            }
+        }
+        return datum;
+    }
+    
+    private Object readWithoutConversion(Object old, Node schema, LeafTape tape) throws IOException {
+        switch (schema.type) {
+            case RECORD:
+                return readRecord(old, schema, tape);
+            case ENUM:
+                return data.createEnum(schema.schema.getEnumSymbols().get((int) tape.nextLong()), schema.schema);
+            case ARRAY:
+                return readArray(old, schema, tape);
+            case MAP:
+                return readMap(old, schema, tape);
+            case UNION:
+                return read(old, schema.branches[(int) tape.nextLong()], tape);
+            case FIXED:
+                GenericFixed fixed = (GenericFixed) data.createFixed(old, schema.schema);
+                AutoJsonDecoder.checkFixed(tape, schema.fixedSize).nextBytes(fixed.bytes(), 0);
+                return fixed;
+            case STRING:
+                return schema.javaString ? tape.nextString() : AutoJsonDecoder.readString(tape, old instanceof Utf8 ? (Utf8) old : null);
+            case BYTES:
+                return AutoJsonDecoder.readBytes(tape, old instanceof ByteBuffer ? (ByteBuffer) old : null);
+            case INT:
+                return AutoJsonDecoder.readInt(tape);
+            case LONG:
+                return AutoJsonDecoder.readLong(tape);
+            case FLOAT:
+                return AutoJsonDecoder.readFloat(tape);
+            case DOUBLE:
+                return AutoJsonDecoder.readDouble(tape);
+            case BOOLEAN:
+                return tape.nextLong() != 0;
+            case NULL:
+                return null;
+            default:
+                throw new AvroTypeException("Unknown type: " + schema.schema);
+        }
+    }
+    
+    private Object readRecord(Object old, Node schema, LeafTape tape) throws IOException {
+        Object record = data.newRecord(old, schema.schema);
+        Field[] fields = schema.fields;
+        for (int i = 0; i < fields.length; i++) {
+            Object oldValue = record == old ? data.getField(record, fields[i].name, i) : null;
+            data.setField(record, fields[i].name, i, read(oldValue, fields[i].node, tape));
+        }
+        return record;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private Object readArray(Object old, Node schema, LeafTape tape) throws IOException {
+        tape.skip(1); // SKIP
+        long count = tape.nextLong();
+        Object array = data.newArray(old, (int) count, schema.schema);
+        for (; count != 0; count = decoder.arrayNext()) { // the next block may have to be matched
+            for (long i = 0; i < count; i++) {
+                Object oldItem = array instanceof GenericArray ? ((GenericArray<?>) array).peek() : null;
+                ((Collection<Object>) array).add(read(oldItem, schema.items, tape));
+            }
+        }
+        if (array instanceof GenericArray) {
+            ((GenericArray<?>) array).prune();
+        }
+        return array;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private Object readMap(Object old, Node schema, LeafTape tape) throws IOException {
+        tape.skip(1); // SKIP
+        long count = tape.nextLong();
+        Object map = data.newMap(old, (int) count);
+        for (; count != 0; count = decoder.mapNext()) {
+            for (long i = 0; i < count; i++) {
+                Object key = schema.javaString ? tape.nextString() : AutoJsonDecoder.readString(tape, null);
+                ((Map<Object, Object>) map).put(key, read(null, schema.items, tape));
+            }
+        }
+        return map;
+    }
+}
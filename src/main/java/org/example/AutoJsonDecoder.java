@@ -17,7 +17,7 @@
  */
 package org.example;
 
-import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonLocation;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -25,35 +25,65 @@ import org.apache.avro.AvroTypeException;
 import org.apache.avro.Schema;
 import org.apache.avro.io.Decoder;
 import org.apache.avro.util.Utf8;
-import org.apache.avro.util.internal.Accessor;
+import org.example.DecodingPlan.Field;
+import org.example.DecodingPlan.Node;
 
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.Callable;
 
 /**
  * A Json {@link Decoder} and Resolver using reader's schema only.
+ * Instances are created by {@link AutoJsonDecoderFactory}.
  * <p>
- *     See {@link #breakAmbiguity(boolean)} to turn off rule#11 and rule#12.
+ *     See {@link #breakAmbiguity(boolean)} to turn off rule#11 and rule#12,
+ *     {@link #streaming(boolean)} to match json tokens without building a tree,
+ *     and {@link #projection(Schema)} to pass over fields a datum reader would skip.
  * </p>
  */
 public class AutoJsonDecoder extends Decoder {
-    private static JsonFactory jsonFactory = new JsonFactory();
+    private static final int DEFAULT_MAX_DEPTH = 1000;
     
-    final Schema schema;
+    final DecodingPlan plan;
     final Callable<JsonNode> nodeSupplier;
-    final ArrayList<Object> bin = new ArrayList<>(); // leaf values
+    final TokenMatcher tokenMatcher; // null if the input is json nodes
+    final LeafTape tape = new LeafTape(); // leaf values of the current datum
+    final TreeMatcher treeMatcher = new TreeMatcher(this);
     
     boolean breakAmbiguity = false;
+    boolean streaming = false;
+    boolean specialized = true;
+    int blockSize; // 0 to match a root array/map whole
+    int maxDepth = DEFAULT_MAX_DEPTH;
+    boolean[] skippedFields; // by Field#id, null if not projecting
+    StringInterner interner; // null if not interning
+    long[][] branchCounts; // by Node#unionId, then branch: rule#12 matches; null if not adaptive
+    int[] predictions; // by Node#unionId: the branch with the most matches
+    DecodingMetrics metrics; // null if not counting
+    private long[][] metricRows; // by Field#id, then the root
+    int currentField; // the innermost field being matched, a row of metricRows; see enterField()
+    private long fieldStart; // when currentField was entered or resumed, if counting
+    
+    /**
+     * Sets all options back to those of a new decoder.
+     */
+    AutoJsonDecoder resetOptions() {
+        breakAmbiguity = false;
+        streaming = false;
+        specialized = true;
+        blockSize = 0;
+        maxDepth = DEFAULT_MAX_DEPTH;
+        skippedFields = null;
+        interner = null;
+        return adaptive(false).metrics(null);
+    }
     
     /**
      * @param breakAmbiguity If true, turn off rule#11 and rule#12.
@@ -63,292 +93,437 @@ public class AutoJsonDecoder extends Decoder {
         return this;
     }
     
-    private AutoJsonDecoder(Schema schema, JsonParser parser) {
-        this.schema = schema;
-        ObjectMapper om = new ObjectMapper();
-        this.nodeSupplier = () -> om.readTree(parser);
+    /**
+     * @param streaming If true, apply the rules on json tokens as they are parsed,
+     *                  instead of reading each datum into a {@link JsonNode} tree first.
+     *                  Only values that rule#10-#12 have to examine more than once are buffered.
+     *                  The result is the same either way.
+     */
+    public AutoJsonDecoder streaming(boolean streaming) {
+        if (streaming && tokenMatcher == null) {
+            throw new IllegalStateException("Streaming needs a json text input");
+        }
+        this.streaming = streaming;
+        return this;
+    }
+    
+    /**
+     * @param blockSize If positive, a datum that is an array or a map is matched {@code blockSize} items at a time,
+     *                  as they are read, instead of as a whole: memory is bounded by the block rather than the collection,
+     *                  and {@link #skipArray()}/{@link #skipMap()} skip the rest without matching it.
+     *                  An item that fails is only found once the items before it have been read.
+     *                  Nested collections are still matched whole; 0, the default, to match the root whole too.
+     */
+    public AutoJsonDecoder blockSize(int blockSize) {
+        if (blockSize < 0) {
+            throw new IllegalArgumentException("Negative block size: " + blockSize);
+        }
+        if (blockSize != 0 && tokenMatcher == null) {
+            throw new IllegalStateException("Blocks need a json text input");
+        }
+        this.blockSize = blockSize;
+        return this;
+    }
+    
+    /**
+     * @param maxDepth How deep the json of a datum may nest, in objects/arrays; 1000 by default.
+     *                 Matching runs on a stack of its own, so a deeper datum, e.g. a long linked list
+     *                 of a recursive schema, only needs memory, not a bigger thread stack.
+     *                 A datum deeper than that fails with an {@link AvroTypeException},
+     *                 and the rest of the input can't be read.
+     */
+    public AutoJsonDecoder maxDepth(int maxDepth) {
+        if (maxDepth < 1) {
+            throw new IllegalArgumentException("Expected a positive max depth. Got " + maxDepth);
+        }
+        this.maxDepth = maxDepth;
+        return this;
+    }
+    
+    static AvroTypeException tooDeep(int maxDepth) {
+        return new AvroTypeException("Json nested deeper than " + maxDepth + " levels, see maxDepth()");
+    }
+    
+    /**
+     * @param specialized If true, match json values with what the plan resolved for each schema node:
+     *                    scalars with a {@link ScalarMatcher}, objects and arrays that can't be {t:v}
+     *                    straight against the record, map, array or union branches that may take them,
+     *                    and record properties in field order first when streaming.
+     *                    If false, with the generic rules. The result is the same either way.
+     */
+    public AutoJsonDecoder specialized(boolean specialized) {
+        this.specialized = specialized;
+        return this;
+    }
+    
+    /**
+     * @param readersSchema The schema of the datum reader, e.g. {@code GenericDatumReader(schema, readersSchema)}.
+     *                      Record fields it doesn't have are not matched against the json:
+     *                      in streaming mode their values are skipped without being parsed into trees.
+     *                      Such values are not validated either; null to match all fields again.
+     */
+    public AutoJsonDecoder projection(Schema readersSchema) {
+        this.skippedFields = readersSchema == null ? null : plan.skippedFields(readersSchema);
+        return this;
+    }
+    
+    /**
+     * @param adaptive If true, rule#12 tries first the union branch that matched most often at the same union,
+     *                 then only the branches before it that a cheap check on the json can't rule out;
+     *                 the first branch that matches is still the one taken. The counts are kept per decoder,
+     *                 see {@link #branchStats()}. The result is the same either way.
+     */
+    public AutoJsonDecoder adaptive(boolean adaptive) {
+        this.branchCounts = adaptive ? new long[plan.unionCount()][] : null;
+        this.predictions = adaptive ? new int[plan.unionCount()] : null;
+        return this;
+    }
+    
+    /**
+     * What {@link #adaptive(boolean)} learned: per union with rule#12 matches, e.g. {@code UNION [null, A, B]},
+     * the number of matches of each branch. Empty if not adaptive.
+     */
+    public Map<String, long[]> branchStats() {
+        Map<String, long[]> stats = new LinkedHashMap<>();
+        for (int id = 0; branchCounts != null && id < branchCounts.length; id++) {
+            if (branchCounts[id] != null) {
+                stats.merge(Mismatch.describe(plan.union(id)), branchCounts[id].clone(), (a, b) -> {
+                    Arrays.setAll(a, i -> a[i] + b[i]);
+                    return a;
+                });
+            }
+        }
+        return stats;
+    }
+    
+    /**
+     * @param interner Where the strings read as {@link String}s (see {@code avro.java.string}) are made canonical,
+     *                 so that a value repeated across datums is a single instance; null, the default, to stop.
+     *                 Map keys are the parser's canonical names then. {@link org.apache.avro.util.Utf8}s are
+     *                 never shared, since datum readers reuse them.
+     */
+    public AutoJsonDecoder interning(StringInterner interner) {
+        this.interner = interner;
+        return this;
+    }
+    
+    /**
+     * @param metrics Counters to add this decoder's work to, or null to stop counting.
+     *                Costs nothing when off.
+     */
+    public AutoJsonDecoder metrics(DecodingMetrics metrics) {
+        this.metrics = metrics;
+        this.metricRows = metrics == null ? null : metrics.rows(plan);
+        this.currentField = plan.fieldCount();
+        return this;
+    }
+    
+    /**
+     * Makes {@code field} the current one, charging the time since the last switch to the one it replaces.
+     */
+    void enterField(int field) {
+        if (metrics != null) {
+            long now = System.nanoTime();
+            metricRows[currentField][DecodingMetrics.NANOS] += now - fieldStart;
+            fieldStart = now;
+        }
+        currentField = field;
+    }
+    
+    private void resetField() {
+        currentField = plan.fieldCount();
+        fieldStart = metrics == null ? 0 : System.nanoTime();
+    }
+    
+    void count(int counter) {
+        if (metrics != null) {
+            metrics.totals[counter]++;
+            metricRows[currentField][counter]++;
+        }
+    }
+    
+    private long inputOffset() {
+        if (tokenMatcher == null) {
+            return 0;
+        }
+        JsonLocation location = tokenMatcher.parser.currentLocation();
+        return location.getByteOffset() != -1 ? location.getByteOffset() : location.getCharOffset();
+    }
+    
+    /**
+     * Where the json may have to be matched twice to rule out an ambiguity (rule#10-#12),
+     * which is the slow path; everywhere else, one match that succeeds is enough.
+     * @return A description per position, e.g. {@code ns.Thing.size: UNION [null, Size] for {t:v} with t in [Size]}.
+     */
+    public static List<String> ambiguities(Schema readersSchema) {
+        return DecodingPlan.of(readersSchema).ambiguities();
+    }
+    
+    /**
+     * True if the value of {@code field} is not matched, but stands in as its {@link Field#placeholder}.
+     */
+    boolean skipped(Field field) {
+        return skippedFields != null && skippedFields[field.id] && field.placeholder != null;
+    }
+    
+    AutoJsonDecoder(DecodingPlan plan, ObjectMapper mapper, JsonParser parser) {
+        this.plan = plan;
+        this.tokenMatcher = new TokenMatcher(this, parser, mapper);
+        this.nodeSupplier = () -> mapper.readTree(tokenMatcher.parser);
     }
     
     AutoJsonDecoder(Schema schema, InputStream in) throws IOException {
-        this(schema, jsonFactory.createParser(in));
+        this(DecodingPlan.of(schema), AutoJsonDecoderFactory.get().mapper, AutoJsonDecoderFactory.get().mapper.createParser(in));
     }
     
     AutoJsonDecoder(Schema schema, String in) throws IOException {
-        this(schema, jsonFactory.createParser(in));
+        this(DecodingPlan.of(schema), AutoJsonDecoderFactory.get().mapper, AutoJsonDecoderFactory.get().mapper.createParser(in));
     }
     
     AutoJsonDecoder(Schema schema, Iterable<JsonNode> nodes) {
-        this.schema = schema;
+        this(DecodingPlan.of(schema), nodes);
+    }
+    
+    AutoJsonDecoder(DecodingPlan plan, Iterable<JsonNode> nodes) {
+        this.plan = plan;
         Iterator<JsonNode> iterator = nodes.iterator();
         this.nodeSupplier = () -> iterator.hasNext() ? iterator.next() : null;
+        this.tokenMatcher = null;
+    }
+    
+    /**
+     * Re-targets this decoder to read from {@code in}, keeping its plan, options and buffers.
+     * Whatever is left of the current datum is dropped.
+     */
+    public AutoJsonDecoder configure(InputStream in) throws IOException {
+        return configure(checkConfigurable().mapper.createParser(in));
+    }
+    
+    public AutoJsonDecoder configure(String in) throws IOException {
+        return configure(checkConfigurable().mapper.createParser(in));
+    }
+    
+    public AutoJsonDecoder configure(byte[] in) throws IOException {
+        return configure(in, 0, in.length);
+    }
+    
+    public AutoJsonDecoder configure(byte[] in, int start, int length) throws IOException {
+        return configure(checkConfigurable().mapper.createParser(in, start, length));
     }
     
-    <T> T pop() throws IOException {
-        if (bin.isEmpty()) {
-            JsonNode node;
+    private TokenMatcher checkConfigurable() {
+        if (tokenMatcher == null) {
+            throw new IllegalStateException("Can't re-target a decoder of json nodes");
+        }
+        return tokenMatcher;
+    }
+    
+    AutoJsonDecoder configure(JsonParser parser) {
+        tokenMatcher.parser = parser;
+        tokenMatcher.dropBlocks();
+        tape.clear();
+        return this;
+    }
+    
+    /**
+     * Matches the next datum, or the next block of it, onto the tape once the current one is fully read.
+     */
+    LeafTape tape() throws IOException {
+        if (!tape.hasNext()) {
+            tape.clear();
+            treeMatcher.clear();
+            resetField();
+            long start = fieldStart;
+            long offset = metrics == null ? 0 : inputOffset();
+            boolean datum = tokenMatcher == null || !tokenMatcher.inBlocks();
+            boolean matched;
             try {
-                node = nodeSupplier.call();
-            } catch (IOException | RuntimeException e) {
+                if (!datum) {
+                    matched = tokenMatcher.matchBlock();
+                } else if (blockSize != 0 && (plan.root.type == Schema.Type.ARRAY || plan.root.type == Schema.Type.MAP)) {
+                    matched = nextToken() && tokenMatcher.matchInBlocks(plan.root, blockSize);
+                } else {
+                    matched = streaming ? nextToken() && tokenMatcher.match(plan.root) : dfs(plan.root, nextNode());
+                }
+            } catch (IOException | RuntimeException e) { // e.g. too deep
+                tape.clear();
                 throw e;
-            } catch (Exception e) {
-                throw new RuntimeException(e);
             }
-            if (node == null) {
-                throw new EOFException();
+            if (!matched) {
+                tape.clear();
+                throw mismatch.exception();
             }
-            List<?> list = dfs(schema, node);
-            for (ListIterator<?> iter = list.listIterator(list.size()); iter.hasPrevious();) {
-                bin.add(iter.previous());
+            if (metrics != null) {
+                enterField(plan.fieldCount());
+                metrics.records += datum ? 1 : 0;
+                metrics.nanos += fieldStart - start;
+                metrics.bytes += inputOffset() - offset;
             }
         }
-        return (T) bin.remove(bin.size() - 1);
+        return tape;
     }
     
-    void expect(Schema schema, JsonNode node, boolean b) {
-        if (!b) {
-            throw new AvroTypeException("Expected " + schema.getType() + ". Got " + node.getNodeType());
+    /**
+     * Matches {@code node} as the next datum, dropping what is left of the current one.
+     * @return false if it doesn't match, see {@link #mismatch}.
+     */
+    boolean match(JsonNode node) {
+        tape.clear();
+        treeMatcher.clear();
+        resetField();
+        if (!dfs(plan.root, node)) {
+            tape.clear();
+            return false;
         }
+        return true;
     }
     
-    List<?> dfs(Schema schema, JsonNode node) {
-        List<?> list1 = null;
-        RuntimeException ex1 = null;
+    /**
+     * Skips the next json value without matching it, for a datum {@link DecodingPlan#leafless} reads none of.
+     * @return false at the end of the input.
+     */
+    boolean skipDatum() throws IOException {
         try {
-            list1 = dfsNonUnion(schema, node);
-            if (breakAmbiguity) {
-                return list1;
+            if (tokenMatcher == null) {
+                nextNode();
+            } else {
+                nextToken();
+                tokenMatcher.parser.skipChildren();
             }
-        } catch (RuntimeException e) {
-            ex1 = e;
+            return true;
+        } catch (EOFException e) {
+            return false;
         }
-        
-        List<?> list2 = null;
-        RuntimeException ex2 = null;
+    }
+    
+    private JsonNode nextNode() throws IOException {
+        JsonNode node;
         try {
-            list2 = dfsUnion(schema, node);
-        } catch (RuntimeException e) {
-            ex2 = e;
-        }
-        
-        if (ex1 != null && ex2 != null) {
-            throw ex1;
+            node = nodeSupplier.call();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
         }
-        
-        if (list1 != null && list2 != null) {
-            throw new AvroTypeException("Ambiguity: " + schema.getType() + ": " + node.getNodeType());
+        if (node == null) {
+            throw new EOFException();
         }
-        
-        return list1 != null ? list1 : list2;
-    }
-    
-    List<?> dfsNonUnion(Schema schema, JsonNode node) {
-        switch (schema.getType()) {
-            case RECORD:
-                return dfsRecord(schema, node);
-            case ARRAY:
-                return dfsArray(schema, node);
-            case MAP:
-                return dfsMap(schema, node);
-            case ENUM:
-                return dfsEnum(schema, node);
-            case FIXED:
-                return dfsBytes(schema, node, schema.getFixedSize());
-            case BYTES:
-                return dfsBytes(schema, node, -1);
-            case INT:
-            case LONG:
-            case FLOAT:
-            case DOUBLE:
-                expect(schema, node, node.isNumber());
-                return List.of(node); // parsed at read time
-            case STRING:
-                expect(schema, node, node.isTextual());
-                return List.of(node.asText());
-            case BOOLEAN:
-                expect(schema, node, node.isBoolean());
-                return List.of(node.asBoolean());
-            case NULL:
-                expect(schema, node, node.isNull());
-                return List.of();
+        return node;
+    }
+    
+    /**
+     * Moves the parser to the first token of the next datum.
+     */
+    private boolean nextToken() throws IOException {
+        if (tokenMatcher.parser.nextToken() == null) {
+            throw new EOFException();
         }
-        throw new IllegalArgumentException("Unknown schema type: " + schema.getType());
+        return true;
     }
     
-    List<Object> cat(Object head, List<?> tail) {
-        ArrayList<Object> list = new ArrayList<>();
-        list.add(head);
-        list.addAll(tail);
-        return list;
+    /**
+     * Why the last unsuccessful match failed.
+     */
+    Mismatch mismatch;
+    
+    boolean fail(Mismatch mismatch) {
+        this.mismatch = mismatch;
+        return false;
     }
     
-    // to prevent long->int etc
-    private boolean typeMatch(String n1, String n2) {
-        List<String> ns = List.of("int", "long", "float", "double");
-        int i1 = ns.indexOf(n1);
-        int i2 = ns.indexOf(n2);
-        if (i1 != -1 && i2 != -1) {
-            return i1 <= i2;
-        }
-        Set<String> ss = Set.of("string", "bytes");
-        if (ss.contains(n1) && ss.contains(n2)) {
-            return true;
-        }
-        return n1.equals(n2);
-    }
-    
-    private List<?> dfsUnion(Schema schema, JsonNode node) {
-        
-        // {t:v}
-        List<?> list1 = null;
-        RuntimeException ex1 = null;
-        if (node.isObject() && node.size() == 1) {
-            String type = node.fieldNames().next();
-            JsonNode value = node.get(type);
-            
-            if (schema.getType() != Schema.Type.UNION) {
-                // writer union, reader not
-                try {
-                    if (!typeMatch(type, schema.getName())) {
-                        throw new AvroTypeException("Expected " + schema.getType() + ". Got " + type);
-                    }
-                    list1 = dfsNonUnion(schema, value);
-                } catch (RuntimeException e) {
-                    // ex1 = e;
-                }
-            } else { // writer union, reader union
-                if (schema.getIndexNamed(type) != null) { // exact name match
-                    Integer index = schema.getIndexNamed(type);
-                    try {
-                        list1 = cat(index, dfsNonUnion(schema.getTypes().get(index), value));
-                    } catch (RuntimeException e) {
-                        ex1 = e;
-                    }
-                } else { // {"long":0} should match "float" in schema ["int", "float","double"]
-                    for (int index = 0; index < schema.getTypes().size(); index++) {
-                        Schema ut = schema.getTypes().get(index);
-                        if (!typeMatch(type, ut.getName())) {
-                            continue;
-                        }
-                        try {
-                            list1 = cat(index, dfsNonUnion(ut, value));
-                            break;
-                        } catch (RuntimeException e) {
-                            // ex1 = e;
-                        }
-                    }
-                }
-            }
-        } // {t:v}
-        if (list1 != null && breakAmbiguity) {
-            return list1;
-        }
-        
-        // any node against union: first type in union that matches
-        List<?> list2 = null;
-        if (schema.getType() == Schema.Type.UNION) {
-            for (int index = 0; index < schema.getTypes().size(); index++) {
-                try {
-                    list2 = cat(index, dfsNonUnion(schema.getTypes().get(index), node));
-                    break;
-                } catch (RuntimeException e) {
-                    continue;
-                }
-            }
-        }
-        
-        if (list1 == null && list2 == null) {
-            throw ex1 != null ? ex1 : new AvroTypeException("Expected " + schema.getType() + ". Got " + node.getNodeType());
+    boolean expect(Node schema, JsonNode node, boolean b) {
+        if (!b) {
+            mismatch = Mismatch.expected(schema, node.getNodeType());
         }
-        
-        if (list1 != null && list2 != null) {
-            throw new AvroTypeException("Ambiguity: " + schema.getType() + ": " + node.getNodeType());
+        return b;
+    }
+    
+    /**
+     * Appends the leaves to the tape, see {@link TreeMatcher}.
+     * @return false if there is no single interpretation, see {@link #mismatch};
+     *         the tape may then hold leftovers, to be truncated by the caller.
+     */
+    boolean dfs(Node schema, JsonNode node) {
+        return treeMatcher.match(schema, node, node.isContainerNode() ? 1 : 0);
+    }
+    
+    /**
+     * Same as {@link #dfs(Node, JsonNode)} for a value {@code level} json objects/arrays deep, itself included.
+     */
+    boolean dfs(Node schema, JsonNode node, int level) {
+        return treeMatcher.match(schema, node, level);
+    }
+    
+    void addNumber(JsonNode node) {
+        if (node.isInt() || node.isLong()) {
+            tape.addLong(LeafTape.NUMBER, node.longValue());
+        } else if (node.isDouble()) {
+            tape.addDouble(node.doubleValue());
+        } else { // BigInteger etc.
+            tape.addObject(LeafTape.NODE, node);
         }
-        
-        return list1 != null ? list1 : list2;
-    }
-    
-    private List<?> dfsMap(Schema schema, JsonNode node) {
-        expect(schema, node, node.isObject());
-        List<Object> list = new ArrayList<>();
-        int[] skip = { 0 };
-        list.add(skip);
-        if (!node.isEmpty()) {
-            list.add((long) node.size());
-            for (Map.Entry<String, JsonNode> property : node.properties()) {
-                list.add(property.getKey());
-                list.addAll(dfs(schema.getValueType(), property.getValue()));
+    }
+    
+    /**
+     * Appends a STRING leaf, keeping its canonical String if the schema wants one.
+     */
+    void addString(Node schema, String text) {
+        int leaf = tape.addString(text);
+        if (interner != null && schema.javaString && interner.wanted(currentField)) {
+            String canonical = interner.intern(text, currentField);
+            if (canonical != null) {
+                tape.keep(leaf, canonical);
             }
         }
-        list.add((long) 0);
-        skip[0] = list.size() - 1;
-        return list;
-    }
-    
-    private List<?> dfsArray(Schema schema, JsonNode node) {
-        expect(schema, node, node.isArray());
-        List<Object> list = new ArrayList<>();
-        int[] skip = { 0 };
-        list.add(skip);
-        if (!node.isEmpty()) {
-            list.add((long) node.size());
-            for (JsonNode element : node) {
-                list.addAll(dfs(schema.getElementType(), element));
-            }
+    }
+    
+    /**
+     * Appends the STRING leaf of a map key, keeping the key itself if the schema wants a String:
+     * the parser has made it canonical already.
+     */
+    void addKey(Node map, String key) {
+        int leaf = tape.addString(key);
+        if (interner != null && map.javaString) {
+            tape.keep(leaf, key);
         }
-        list.add((long) 0);
-        skip[0] = list.size() - 1;
-        return list;
     }
     
-    private List<?> dfsEnum(Schema schema, JsonNode node) {
-        expect(schema, node, node.isTextual());
+    boolean dfsEnum(Node schema, JsonNode node) {
+        if (!expect(schema, node, node.isTextual())) {
+            return false;
+        }
         String text = node.asText();
-        if (!schema.hasEnumSymbol(text)) {
-            if (schema.getEnumDefault() == null) {
-                throw new AvroTypeException("No match for " + text);
+        Integer index = schema.ordinals.get(text);
+        if (index == null) {
+            if (schema.enumDefault == -1) {
+                return fail(Mismatch.noSymbol(text));
             }
             // schema resolution: reader's default is used
-            text = schema.getEnumDefault();
+            index = schema.enumDefault;
         }
-        Integer index = schema.getEnumOrdinal(text);
-        return List.of(index);
-    }
-    
-    private List<?> dfsRecord(Schema schema, JsonNode node) {
-        expect(schema, node, node.isObject());
-        // schema resolution:
-        // - fields are matched by name/alias; ordering doesn't matter.
-        // - writer's fields not in reader's schema are ignored
-        // - reader's default field values are used if the field isn't in writer's.
-        List<Object> list = new ArrayList<>();
-        for (Schema.Field field : schema.getFields()) {
-            JsonNode value = node.get(field.name());
-            if (value == null) {
-                for (String alias : field.aliases()) {
-                    value = node.get(alias);
-                    if (value != null) {
-                        break;
-                    }
-                }
-            }
-            if (value == null) {
-                value = Accessor.defaultValue(field);
-            }
-            if (value == null) {
-                throw new AvroTypeException("missing required field " + field.name());
-            }
-            list.addAll(dfs(field.schema(), value));
+        tape.addLong(LeafTape.INT, index);
+        return true;
+    }
+    
+    boolean addDefault(Field field) {
+        LeafTape leaves = field.defaultLeaves(breakAmbiguity);
+        if (leaves == null) {
+            return fail(field.defaultMismatch(breakAmbiguity));
         }
-        return list;
+        tape.append(leaves, 0, leaves.size());
+        return true;
     }
     
-    private List<?> dfsBytes(Schema schema, JsonNode node, int optFixedSize) {
-        expect(schema, node, node.isTextual());
-        byte[] bytes = node.asText().getBytes(StandardCharsets.ISO_8859_1);
-        if (optFixedSize != -1 && bytes.length != optFixedSize) {
-            throw new AvroTypeException("Expected fixed length " + optFixedSize + ", but got" + bytes.length);
+    boolean dfsBytes(Node schema, JsonNode node, int optFixedSize) {
+        if (!expect(schema, node, node.isTextual())) {
+            return false;
+        }
+        String text = node.asText(); // a byte per char, or per surrogate pair
+        if (optFixedSize != -1 && LeafTape.latin1Length(text) != optFixedSize) {
+            return fail(Mismatch.fixedSize(optFixedSize, LeafTape.latin1Length(text)));
         }
-        return List.of(bytes);
+        tape.addLatin1(text);
+        return true;
     }
     
     @Override
@@ -358,73 +533,137 @@ public class AutoJsonDecoder extends Decoder {
     
     @Override
     public boolean readBoolean() throws IOException {
-        return pop();
+        return tape().nextLong() != 0;
     }
     
     @Override
     public int readInt() throws IOException {
-        JsonNode node = pop();
-        try {
-            if (node.isIntegralNumber()) {
-                return Integer.parseInt(node.asText());
-            }
-            if (node.isFloatingPointNumber()) { // behavior of standard JsonDecoder
-                float value = Float.parseFloat(node.asText());
+        return readInt(tape());
+    }
+    
+    static int readInt(LeafTape tape) {
+        switch (tape.peekTag()) {
+            case LeafTape.NUMBER:
+                long l = tape.nextLong();
+                if (l == (int) l) {
+                    return (int) l;
+                }
+                throw new AvroTypeException("Expected " + "int" + ". Got " + l);
+            case LeafTape.DOUBLE: // behavior of standard JsonDecoder
+                double d = tape.nextDouble();
+                float value = Float.parseFloat(Double.toString(d));
                 if (Math.abs(value - Math.round(value)) <= Float.MIN_VALUE) {
                     return Math.round(value);
                 }
-            }
-        } catch (NumberFormatException e) {
-            //
+                throw new AvroTypeException("Expected " + "int" + ". Got " + d);
+            default:
+                JsonNode node = (JsonNode) tape.nextObject();
+                try {
+                    if (node.isIntegralNumber()) {
+                        return Integer.parseInt(node.asText());
+                    }
+                    if (node.isFloatingPointNumber()) { // behavior of standard JsonDecoder
+                        float f = Float.parseFloat(node.asText());
+                        if (Math.abs(f - Math.round(f)) <= Float.MIN_VALUE) {
+                            return Math.round(f);
+                        }
+                    }
+                } catch (NumberFormatException e) {
+                    //
+                }
+                throw new AvroTypeException("Expected " + "int" + ". Got " + node.asText());
         }
-        throw new AvroTypeException("Expected " + "int" + ". Got " + node.asText());
     }
     
     @Override
     public long readLong() throws IOException {
+        return readLong(tape());
+    }
+    
+    static long readLong(LeafTape tape) {
         // schema resolution: writer's could be `int`
-        JsonNode node = pop();
-        try {
-            if (node.isIntegralNumber()) {
-                return Long.parseLong(node.asText());
-            }
-            if (node.isFloatingPointNumber()) { // behavior of standard JsonDecoder
-                double value = Double.parseDouble(node.asText());
+        switch (tape.peekTag()) {
+            case LeafTape.NUMBER:
+                return tape.nextLong();
+            case LeafTape.DOUBLE: // behavior of standard JsonDecoder
+                double value = tape.nextDouble();
                 if (Math.abs(value - Math.round(value)) <= Double.MIN_VALUE) {
                     return Math.round(value);
                 }
-            }
-        } catch (NumberFormatException e) {
-            //
+                throw new AvroTypeException("Expected " + "long" + ". Got " + value);
+            default:
+                JsonNode node = (JsonNode) tape.nextObject();
+                try {
+                    if (node.isIntegralNumber()) {
+                        return Long.parseLong(node.asText());
+                    }
+                    if (node.isFloatingPointNumber()) { // behavior of standard JsonDecoder
+                        double d = Double.parseDouble(node.asText());
+                        if (Math.abs(d - Math.round(d)) <= Double.MIN_VALUE) {
+                            return Math.round(d);
+                        }
+                    }
+                } catch (NumberFormatException e) {
+                    //
+                }
+                throw new AvroTypeException("Expected " + "long" + ". Got " + node.asText());
         }
-        throw new AvroTypeException("Expected " + "long" + ". Got " + node.asText());
     }
     
     @Override
     public float readFloat() throws IOException {
+        return readFloat(tape());
+    }
+    
+    static float readFloat(LeafTape tape) {
         // schema resolution: writer's could be `int/long`
-        JsonNode node = pop();
-        try {
-            return Float.parseFloat(node.asText());
-        } catch (NumberFormatException e) {
-            throw new AvroTypeException("Expected " + "float" + ". Got " + node.asText());
+        switch (tape.peekTag()) {
+            case LeafTape.NUMBER:
+                return tape.nextLong();
+            case LeafTape.DOUBLE: // parsed from its text as before, (float) would round twice
+                return Float.parseFloat(Double.toString(tape.nextDouble()));
+            default:
+                JsonNode node = (JsonNode) tape.nextObject();
+                try {
+                    return Float.parseFloat(node.asText());
+                } catch (NumberFormatException e) {
+                    throw new AvroTypeException("Expected " + "float" + ". Got " + node.asText());
+                }
         }
     }
     
     @Override
     public double readDouble() throws IOException {
+        return readDouble(tape());
+    }
+    
+    static double readDouble(LeafTape tape) {
         // schema resolution: writer's could be `int/long/float`
-        JsonNode node = pop();
-        try {
-            return Double.parseDouble(node.asText());
-        } catch (NumberFormatException e) {
-            throw new AvroTypeException("Expected " + "double" + ". Got " + node.asText());
+        switch (tape.peekTag()) {
+            case LeafTape.NUMBER:
+                return tape.nextLong();
+            case LeafTape.DOUBLE:
+                return tape.nextDouble();
+            default:
+                JsonNode node = (JsonNode) tape.nextObject();
+                try {
+                    return Double.parseDouble(node.asText());
+                } catch (NumberFormatException e) {
+                    throw new AvroTypeException("Expected " + "double" + ". Got " + node.asText());
+                }
         }
     }
     
     @Override
     public Utf8 readString(Utf8 old) throws IOException {
-        return new Utf8(readString());
+        return readString(tape(), old);
+    }
+    
+    static Utf8 readString(LeafTape tape, Utf8 old) {
+        Utf8 utf8 = old != null ? old : new Utf8();
+        utf8.setByteLength(tape.peekLength());
+        tape.nextBytes(utf8.getBytes(), 0);
+        return utf8;
     }
     
     @Override
@@ -438,12 +677,12 @@ public class AutoJsonDecoder extends Decoder {
         // fail.
         // The reader wants to see bytes as a string, UTF-8 is definitely the dominant
         // choice.
-        return pop();
+        return tape().nextString();
     }
     
     @Override
     public void skipString() throws IOException {
-        pop();
+        tape().skip(1);
     }
     
     @Override
@@ -456,82 +695,99 @@ public class AutoJsonDecoder extends Decoder {
         // fail.
         // The reader wants to see the string as bytes, UTF-8 is definitely the dominant
         // choice.
-        return ByteBuffer.wrap(pop());
+        return readBytes(tape(), old);
+    }
+    
+    static ByteBuffer readBytes(LeafTape tape, ByteBuffer old) {
+        int length = tape.peekLength();
+        ByteBuffer result;
+        if (old != null && old.hasArray() && length <= old.capacity()) {
+            result = old;
+            result.clear();
+        } else {
+            result = ByteBuffer.allocate(length);
+        }
+        tape.nextBytes(result.array(), result.arrayOffset());
+        result.limit(length);
+        return result;
     }
     
     @Override
     public void skipBytes() throws IOException {
-        pop();
+        tape().skip(1);
     }
     
-    byte[] popFixed(int length) throws IOException {
-        byte[] bs = pop();
-        if (bs.length != length) {
+    static LeafTape checkFixed(LeafTape tape, int length) {
+        if (tape.peekLength() != length) {
             throw new AvroTypeException(
-                "Incorrect length for fixed binary: expected " + length + " but received " + bs.length + " bytes.");
+                "Incorrect length for fixed binary: expected " + length + " but received " + tape.peekLength() + " bytes.");
         }
-        return bs;
+        return tape;
     }
     
     @Override
     public void readFixed(byte[] bytes, int start, int length) throws IOException {
-        byte[] bs = popFixed(length);
-        System.arraycopy(bs, 0, bytes, start, length);
+        checkFixed(tape(), length).nextBytes(bytes, start);
     }
     
     @Override
     public void skipFixed(int length) throws IOException {
-        popFixed(length);
+        checkFixed(tape(), length).skip(1);
     }
     
     @Override
     public int readEnum() throws IOException {
-        return pop();
+        return (int) tape().nextLong();
     }
     
     @Override
     public long readArrayStart() throws IOException {
-        int[] skip = pop();
-        return pop();
+        LeafTape tape = tape();
+        tape.skip(1); // SKIP
+        return tape.nextLong();
     }
     
     @Override
     public long arrayNext() throws IOException {
-        return pop();
+        return tape().nextLong();
     }
     
     @Override
     public long skipArray() throws IOException {
-        int[] skip = pop();
-        for (int i = 0; i < skip[0]; i++) {
-            pop();
-        }
-        return 0;
+        return skipCollection();
     }
     
     @Override
     public long readMapStart() throws IOException {
-        int[] skip = pop();
-        return pop();
+        LeafTape tape = tape();
+        tape.skip(1); // SKIP
+        return tape.nextLong();
     }
     
     @Override
     public long mapNext() throws IOException {
-        return pop();
+        return tape().nextLong();
     }
     
     @Override
     public long skipMap() throws IOException {
-        int[] skip = pop();
-        for (int i = 0; i < skip[0]; i++) {
-            pop();
+        return skipCollection();
+    }
+    
+    private long skipCollection() throws IOException {
+        LeafTape tape = tape();
+        long skip = tape.nextLong();
+        if (skip == -1) { // the root, read in blocks
+            tape.clear();
+            tokenMatcher.skipBlocks();
+        } else {
+            tape.skip(skip);
         }
         return 0;
     }
     
     @Override
     public int readIndex() throws IOException {
-        return pop();
+        return (int) tape().nextLong();
     }
-    
 }
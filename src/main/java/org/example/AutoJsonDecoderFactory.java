@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.StreamReadConstraints;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.avro.Schema;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+
+/**
+ * Creates {@link AutoJsonDecoder}s, like {@link org.apache.avro.io.DecoderFactory} does for Avro's decoders,
+ * and the {@link AutoJsonEncoder}s that write json for them.
+ * <p>
+ *     Decoders of a factory share its {@link ObjectMapper}, and the compiled schema of each reader's schema.
+ *     A decoder can be re-targeted to a new input, see {@link AutoJsonDecoder#configure(InputStream)};
+ *     the {@code reuse} methods do so if the schema is the same, keeping its options, and the {@code pooled} methods
+ *     reuse the last decoder of the calling thread, with its options back to their defaults.
+ * </p>
+ */
+public class AutoJsonDecoderFactory {
+    private static final AutoJsonDecoderFactory DEFAULT_FACTORY = new AutoJsonDecoderFactory();
+    
+    // how deep json may nest is up to AutoJsonDecoder#maxDepth(int), not the parser
+    final ObjectMapper mapper = new ObjectMapper(JsonFactory.builder()
+        .streamReadConstraints(StreamReadConstraints.builder().maxNestingDepth(Integer.MAX_VALUE).build())
+        .build());
+    private final ThreadLocal<AutoJsonDecoder> pool = new ThreadLocal<>();
+    
+    /**
+     * The default factory, shared by everyone.
+     */
+    public static AutoJsonDecoderFactory get() {
+        return DEFAULT_FACTORY;
+    }
+    
+    public AutoJsonDecoder autoJsonDecoder(Schema schema, InputStream in) throws IOException {
+        return autoJsonDecoder(schema, in, null);
+    }
+    
+    public AutoJsonDecoder autoJsonDecoder(Schema schema, String in) throws IOException {
+        return autoJsonDecoder(schema, in, null);
+    }
+    
+    public AutoJsonDecoder autoJsonDecoder(Schema schema, byte[] in) throws IOException {
+        return autoJsonDecoder(schema, in, null);
+    }
+    
+    /**
+     * Parses {@code file} in place, through memory mapping, see {@link MappedFile}.
+     */
+    public AutoJsonDecoder autoJsonDecoder(Schema schema, Path file) throws IOException {
+        return newDecoder(schema).configure(new MappedFile(file).parser(mapper.getFactory()));
+    }
+    
+    /**
+     * @param reuse A decoder to re-target if it was created by this factory for the same {@code schema};
+     *              its options are kept. Otherwise, or if null, a new decoder is created.
+     */
+    public AutoJsonDecoder autoJsonDecoder(Schema schema, InputStream in, AutoJsonDecoder reuse) throws IOException {
+        return reusable(schema, reuse) ? reuse.configure(in) : newDecoder(schema).configure(in);
+    }
+    
+    public AutoJsonDecoder autoJsonDecoder(Schema schema, String in, AutoJsonDecoder reuse) throws IOException {
+        return reusable(schema, reuse) ? reuse.configure(in) : newDecoder(schema).configure(in);
+    }
+    
+    public AutoJsonDecoder autoJsonDecoder(Schema schema, byte[] in, AutoJsonDecoder reuse) throws IOException {
+        return reusable(schema, reuse) ? reuse.configure(in) : newDecoder(schema).configure(in);
+    }
+    
+    /**
+     * Same as {@link #autoJsonDecoder(Schema, InputStream, AutoJsonDecoder)} with the last decoder
+     * this method returned to the calling thread. The pool is shared by whatever runs on the thread,
+     * so the decoder comes with the options of a new one, whatever the last caller set.
+     * The decoder must not be used once the thread asks for another one.
+     */
+    public AutoJsonDecoder pooledDecoder(Schema schema, InputStream in) throws IOException {
+        return pooled(autoJsonDecoder(schema, in, fromPool(schema)));
+    }
+    
+    public AutoJsonDecoder pooledDecoder(Schema schema, String in) throws IOException {
+        return pooled(autoJsonDecoder(schema, in, fromPool(schema)));
+    }
+    
+    public AutoJsonDecoder pooledDecoder(Schema schema, byte[] in) throws IOException {
+        return pooled(autoJsonDecoder(schema, in, fromPool(schema)));
+    }
+    
+    /**
+     * A writer of json for {@link AutoJsonDecoder}s of {@code schema}, see {@link AutoJsonEncoder}.
+     */
+    public AutoJsonEncoder autoJsonEncoder(Schema schema, OutputStream out) throws IOException {
+        return autoJsonEncoder(schema, out, null);
+    }
+    
+    /**
+     * @param reuse An encoder to re-target if it was created by this factory for the same {@code schema}.
+     *              Otherwise, or if null, a new encoder is created.
+     */
+    public AutoJsonEncoder autoJsonEncoder(Schema schema, OutputStream out, AutoJsonEncoder reuse) throws IOException {
+        if (reuse == null || reuse.plan.schema != schema || reuse.jsonFactory != mapper.getFactory()) {
+            reuse = new AutoJsonEncoder(DecodingPlan.of(schema), mapper.getFactory());
+        }
+        return reuse.configure(out);
+    }
+    
+    /**
+     * The pooled decoder, with default options, if it can be re-targeted for {@code schema}; else null.
+     */
+    private AutoJsonDecoder fromPool(Schema schema) {
+        AutoJsonDecoder decoder = pool.get();
+        return reusable(schema, decoder) ? decoder.resetOptions() : null;
+    }
+    
+    private AutoJsonDecoder pooled(AutoJsonDecoder decoder) {
+        pool.set(decoder);
+        return decoder;
+    }
+    
+    private boolean reusable(Schema schema, AutoJsonDecoder reuse) {
+        return reuse != null && reuse.plan.schema == schema
+            && reuse.tokenMatcher != null && reuse.tokenMatcher.mapper == mapper;
+    }
+    
+    private AutoJsonDecoder newDecoder(Schema schema) {
+        return new AutoJsonDecoder(DecodingPlan.of(schema), mapper, null);
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.MinimalPrettyPrinter;
+import org.apache.avro.AvroTypeException;
+import org.apache.avro.Schema;
+import org.apache.avro.io.Encoder;
+import org.apache.avro.util.Utf8;
+import org.example.DecodingPlan.Field;
+import org.example.DecodingPlan.Node;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A Json {@link Encoder} for {@link AutoJsonDecoder}: a datum per line, and union values
+ * only wrapped as {t:v} where the decoder would otherwise read them as another branch.
+ * Instances are created by {@link AutoJsonDecoderFactory}.
+ * <p>
+ *     E.g. {@code ["null", "string"]} is written as {@code "parsley"} rather than {@code {"string":"parsley"}},
+ *     but {@code ["int", "long"]} keeps {@code {"long":1}}, see {@link DecodingPlan}{@code .bareBranches()}.
+ *     Otherwise the json is the same as {@link org.apache.avro.io.JsonEncoder}'s.
+ * </p>
+ */
+public class AutoJsonEncoder extends Encoder {
+    final DecodingPlan plan;
+    final JsonFactory jsonFactory;
+    private JsonGenerator generator;
+    // the records, arrays, maps and unions being written, outermost first
+    private Frame[] frames = new Frame[16];
+    private int depth;
+    private Node pending; // schema of the next value, its property name written; null between items
+    private boolean keyNext; // the next string is a map key
+    private char[] chars = new char[64];
+    
+    AutoJsonEncoder(DecodingPlan plan, JsonFactory jsonFactory) {
+        this.plan = plan;
+        this.jsonFactory = jsonFactory;
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = new Frame();
+        }
+    }
+    
+    /**
+     * Re-targets this encoder to write to {@code out}, keeping its buffers.
+     * What was written so far is flushed, a datum that isn't complete is dropped.
+     */
+    public AutoJsonEncoder configure(OutputStream out) throws IOException {
+        if (generator != null) {
+            generator.flush();
+        }
+        generator = jsonFactory.createGenerator(out, JsonEncoding.UTF8);
+        generator.setPrettyPrinter(new MinimalPrettyPrinter("\n"));
+        depth = 0;
+        pending = plan.root;
+        keyNext = false;
+        return this;
+    }
+    
+    /**
+     * The schema of the value being written, checked to be of {@code type}.
+     */
+    private Node begin(Schema.Type type) throws IOException {
+        if (depth == 0 && pending.type == Schema.Type.RECORD) { // a datum is opened by its first leaf
+            openRecord(pending);
+        }
+        if (pending == null || pending.type != type) {
+            throw new AvroTypeException("Expected " + (pending == null ? "an item" : pending.type) + ". Got " + type);
+        }
+        return pending;
+    }
+    
+    /**
+     * After a value: closes what it completes, and moves on to the next value.
+     */
+    private void end() throws IOException {
+        if (depth == 0) {
+            pending = plan.root;
+            return;
+        }
+        Frame frame = frames[depth - 1];
+        switch (frame.node.type) {
+            case UNION:
+                if (frame.next != 0) { // wrapped
+                    generator.writeEndObject();
+                }
+                depth--;
+                end();
+                break;
+            case RECORD:
+                nextField(frame);
+                break;
+            default: // items to come
+                pending = null;
+                break;
+        }
+    }
+    
+    /**
+     * {@code schema} is the next value: a record has no write of its own, so it is opened right away.
+     */
+    private void expect(Node schema) throws IOException {
+        pending = schema;
+        if (schema.type == Schema.Type.RECORD) {
+            openRecord(schema);
+        }
+    }
+    
+    private void openRecord(Node record) throws IOException {
+        generator.writeStartObject();
+        nextField(push(record, 0));
+    }
+    
+    private void nextField(Frame frame) throws IOException {
+        Field[] fields = frame.node.fields;
+        if (frame.next == fields.length) {
+            generator.writeEndObject();
+            depth--;
+            end();
+            return;
+        }
+        Field field = fields[frame.next++];
+        generator.writeFieldName(field.name);
+        expect(field.node);
+    }
+    
+    private Frame push(Node schema, int next) {
+        if (depth == frames.length) {
+            frames = Arrays.copyOf(frames, depth * 2);
+            for (int i = depth; i < frames.length; i++) {
+                frames[i] = new Frame();
+            }
+        }
+        Frame frame = frames[depth++];
+        frame.node = schema;
+        frame.next = next;
+        return frame;
+    }
+    
+    @Override
+    public void writeNull() throws IOException {
+        begin(Schema.Type.NULL);
+        generator.writeNull();
+        end();
+    }
+    
+    @Override
+    public void writeBoolean(boolean b) throws IOException {
+        begin(Schema.Type.BOOLEAN);
+        generator.writeBoolean(b);
+        end();
+    }
+    
+    @Override
+    public void writeInt(int n) throws IOException {
+        begin(Schema.Type.INT);
+        generator.writeNumber(n);
+        end();
+    }
+    
+    @Override
+    public void writeLong(long n) throws IOException {
+        begin(Schema.Type.LONG);
+        generator.writeNumber(n);
+        end();
+    }
+    
+    @Override
+    public void writeFloat(float f) throws IOException {
+        begin(Schema.Type.FLOAT);
+        generator.writeNumber(f);
+        end();
+    }
+    
+    @Override
+    public void writeDouble(double d) throws IOException {
+        begin(Schema.Type.DOUBLE);
+        generator.writeNumber(d);
+        end();
+    }
+    
+    @Override
+    public void writeString(Utf8 utf8) throws IOException {
+        if (keyNext) {
+            writeString(utf8.toString());
+            return;
+        }
+        begin(Schema.Type.STRING);
+        generator.writeUTF8String(utf8.getBytes(), 0, utf8.getByteLength());
+        end();
+    }
+    
+    @Override
+    public void writeString(String str) throws IOException {
+        if (keyNext) {
+            if (frames[depth - 1].next == OPEN_LATER) { // the single entry
+                openMap(frames[depth - 2].node.mayBeWrapped(str));
+            }
+            generator.writeFieldName(str);
+            keyNext = false;
+            expect(frames[depth - 1].node.items);
+            return;
+        }
+        begin(Schema.Type.STRING);
+        generator.writeString(str);
+        end();
+    }
+    
+    @Override
+    public void writeBytes(ByteBuffer bytes) throws IOException {
+        if (bytes.hasArray()) {
+            writeBytes(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+        } else {
+            byte[] copy = new byte[bytes.remaining()];
+            bytes.duplicate().get(copy);
+            writeBytes(copy, 0, copy.length);
+        }
+    }
+    
+    @Override
+    public void writeBytes(byte[] bytes, int start, int len) throws IOException {
+        begin(Schema.Type.BYTES);
+        writeLatin1(bytes, start, len);
+        end();
+    }
+    
+    @Override
+    public void writeFixed(byte[] bytes, int start, int len) throws IOException {
+        Node schema = begin(Schema.Type.FIXED);
+        if (len != schema.fixedSize) {
+            throw new AvroTypeException("Incorrect length for fixed binary: expected " + schema.fixedSize + " but received " + len + " bytes.");
+        }
+        writeLatin1(bytes, start, len);
+        end();
+    }
+    
+    /**
+     * A char per byte, as {@link org.apache.avro.io.JsonEncoder} does.
+     */
+    private void writeLatin1(byte[] bytes, int start, int len) throws IOException {
+        if (chars.length < len) {
+            chars = new char[Math.max(chars.length * 2, len)];
+        }
+        for (int i = 0; i < len; i++) {
+            chars[i] = (char) (bytes[start + i] & 0xFF);
+        }
+        generator.writeString(chars, 0, len);
+    }
+    
+    @Override
+    public void writeEnum(int e) throws IOException {
+        Node schema = begin(Schema.Type.ENUM);
+        generator.writeString(schema.schema.getEnumSymbols().get(e));
+        end();
+    }
+    
+    @Override
+    public void writeArrayStart() throws IOException {
+        Node schema = begin(Schema.Type.ARRAY);
+        generator.writeStartArray();
+        push(schema, 0);
+        pending = null;
+    }
+    
+    @Override
+    public void setItemCount(long itemCount) throws IOException {
+        if (itemCount != 1 && frames[depth - 1].next == OPEN_LATER) {
+            openMap(false);
+        }
+    }
+    
+    @Override
+    public void startItem() throws IOException {
+        Node schema = frames[depth - 1].node;
+        if (schema.type == Schema.Type.MAP) {
+            keyNext = true;
+        } else {
+            expect(schema.items);
+        }
+    }
+    
+    @Override
+    public void writeArrayEnd() throws IOException {
+        generator.writeEndArray();
+        depth--;
+        end();
+    }
+    
+    @Override
+    public void writeMapStart() throws IOException {
+        Node schema = begin(Schema.Type.MAP);
+        Frame parent = depth == 0 ? null : frames[depth - 1];
+        if (parent != null && parent.node.type == Schema.Type.UNION && parent.next == OPEN_LATER) { // wrapped or not
+            push(schema, OPEN_LATER);
+        } else {
+            generator.writeStartObject();
+            push(schema, 0);
+        }
+        pending = null;
+    }
+    
+    /**
+     * Opens the map of a union branch, once it's known whether it's wrapped.
+     */
+    private void openMap(boolean wrapped) throws IOException {
+        Frame union = frames[depth - 2];
+        union.next = wrapped ? 1 : 0;
+        if (wrapped) {
+            generator.writeStartObject();
+            generator.writeFieldName("map");
+        }
+        generator.writeStartObject();
+        frames[depth - 1].next = 0;
+    }
+    
+    @Override
+    public void writeMapEnd() throws IOException {
+        if (frames[depth - 1].next == OPEN_LATER) {
+            openMap(false);
+        }
+        generator.writeEndObject();
+        depth--;
+        end();
+    }
+    
+    @Override
+    public void writeIndex(int unionIndex) throws IOException {
+        Node union = begin(Schema.Type.UNION);
+        Node branch = union.branches[unionIndex];
+        boolean wrapped = !union.bareBranches[unionIndex];
+        if (branch.type == Schema.Type.MAP && !wrapped) { // unless it has a single entry that can be {t:v}
+            push(union, OPEN_LATER);
+            expect(branch);
+            return;
+        }
+        push(union, wrapped ? 1 : 0);
+        if (wrapped) {
+            generator.writeStartObject();
+            generator.writeFieldName(branch.schema.getFullName());
+        }
+        expect(branch);
+    }
+    
+    @Override
+    public void flush() throws IOException {
+        generator.flush();
+    }
+    
+    private static final int OPEN_LATER = 2;
+    
+    private static final class Frame {
+        Node node;
+        int next; // RECORD: the next field; UNION: 1 if wrapped as {t:v}; MAP, UNION of it: or OPEN_LATER
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteBufferFeeder;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import org.apache.avro.Schema;
+import org.apache.avro.io.DatumReader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Decodes json as it arrives in chunks, e.g. from a non-blocking channel, without ever waiting for input.
+ * <p>
+ *     The bytes are tokenized by Jackson's non-blocking parser; the tokens of a datum are kept
+ *     until its last one arrives, then the datum is decoded from them by an {@link AutoJsonDecoder}
+ *     and passed on. What is left of a datum at the end of a chunk waits for the next one.
+ *     Not thread-safe: a feeder per connection, fed by one thread at a time.
+ * </p>
+ */
+public class AutoJsonFeeder<D> {
+    private final AutoJsonDecoder decoder;
+    private final DatumReader<D> datumReader;
+    private final JsonParser parser;
+    private final ByteBufferFeeder feeder;
+    
+    private long maxDatumSize = 16 << 20;
+    private long fed; // bytes
+    private long consumed; // bytes up to the end of the last datum
+    private TokenBuffer tokens; // of the datum so far, null between datums
+    private long line; // where the datum starts
+    private int depth;
+    
+    /**
+     * @param schema Reader's schema, to decode the json with.
+     * @param datumReader Reads the datums off the decoder, e.g. {@code new GenericDatumReader<>(schema)}.
+     */
+    public AutoJsonFeeder(Schema schema, DatumReader<D> datumReader) throws IOException {
+        AutoJsonDecoderFactory factory = AutoJsonDecoderFactory.get();
+        this.decoder = factory.autoJsonDecoder(schema, new byte[0]);
+        this.datumReader = datumReader;
+        this.parser = factory.mapper.getFactory().createNonBlockingByteBufferParser();
+        this.feeder = (ByteBufferFeeder) parser.getNonBlockingInputFeeder();
+    }
+    
+    /**
+     * @param maxDatumSize Bytes a datum may take, 16 MiB by default; more fails the feed, to bound memory.
+     */
+    public AutoJsonFeeder<D> maxDatumSize(long maxDatumSize) {
+        this.maxDatumSize = maxDatumSize;
+        return this;
+    }
+    
+    /**
+     * @param decoderOptions Applied to the decoder, e.g. {@code d -> d.breakAmbiguity(true)}.
+     */
+    public AutoJsonFeeder<D> decoderOptions(Consumer<AutoJsonDecoder> decoderOptions) {
+        decoderOptions.accept(decoder);
+        return this;
+    }
+    
+    /**
+     * Takes the next {@code length} bytes of the input, and calls {@code results} with each datum they complete,
+     * in order; a datum that fails to decode is a result with an error, the line being where it starts.
+     * The bytes are not read once this returns, and may be reused.
+     * @throws IOException If the input isn't json, or a datum is larger than {@link #maxDatumSize(long)}.
+     */
+    public void feed(byte[] bytes, int start, int length, Consumer<? super AutoJsonResult<D>> results) throws IOException {
+        feed(ByteBuffer.wrap(bytes, start, length), results);
+    }
+    
+    /**
+     * Same as {@link #feed(byte[], int, int, Consumer)} with the remaining bytes of {@code bytes}, which are consumed;
+     * a direct buffer is parsed in place, without a copy.
+     */
+    public void feed(ByteBuffer bytes, Consumer<? super AutoJsonResult<D>> results) throws IOException {
+        feeder.feedInput(bytes);
+        fed += bytes.remaining();
+        drain(results);
+        bytes.position(bytes.limit());
+    }
+    
+    /**
+     * There's no more input: calls {@code results} with the last datum, if any.
+     * @throws IOException If the input ends within a datum.
+     */
+    public void endOfInput(Consumer<? super AutoJsonResult<D>> results) throws IOException {
+        feeder.endOfInput();
+        drain(results);
+    }
+    
+    private void drain(Consumer<? super AutoJsonResult<D>> results) throws IOException {
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.NOT_AVAILABLE && token != null) {
+            if (tokens == null) {
+                tokens = new TokenBuffer(parser);
+                line = parser.currentTokenLocation().getLineNr();
+            }
+            tokens.copyCurrentEvent(parser);
+            if (token.isStructStart()) {
+                depth++;
+            } else if (token.isStructEnd()) {
+                depth--;
+            }
+            if (depth == 0) {
+                results.accept(decode(tokens));
+                tokens = null;
+                consumed = parser.currentLocation().getByteOffset();
+            }
+            checkSize();
+        }
+        checkSize(); // a datum in the parser's buffers, maybe within a token
+    }
+    
+    private AutoJsonResult<D> decode(TokenBuffer tokens) {
+        try (JsonParser datum = tokens.asParser()) {
+            decoder.configure(datum);
+            return new AutoJsonResult<>(line, datumReader.read(null, decoder), null);
+        } catch (IOException | RuntimeException e) {
+            return new AutoJsonResult<>(line, null, e);
+        }
+    }
+    
+    private void checkSize() throws IOException {
+        if (fed - consumed > maxDatumSize) {
+            throw new IOException("Datum at line " + parser.currentLocation().getLineNr()
+                + " is larger than " + maxDatumSize + " bytes");
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import org.apache.avro.AvroTypeException;
+import org.apache.avro.Schema;
+import org.apache.avro.io.DatumReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Decodes newline delimited json, a datum per line, on several threads.
+ * <p>
+ *     The input is split into chunks at line ends, and the chunks are decoded concurrently,
+ *     each thread with its own {@link AutoJsonDecoder} and {@link DatumReader}; the compiled schema is shared.
+ *     Results come back in input order, and a chunk is only read from the input
+ *     when the consumer has room for it, see {@link #maxChunksInFlight(int)}.
+ *     A line that fails to decode, or holds more than one json value,
+ *     is reported as its own {@link AutoJsonResult}, without stopping the rest.
+ * </p>
+ */
+public class AutoJsonParallelReader<D> {
+    private final Schema schema;
+    private final Supplier<? extends DatumReader<D>> datumReaders;
+    private final AutoJsonDecoderFactory factory = AutoJsonDecoderFactory.get();
+    private final ThreadLocal<Worker<D>> workers = new ThreadLocal<>();
+    
+    private Executor executor = ForkJoinPool.commonPool();
+    private int chunkSize = 1 << 20;
+    private int maxChunksInFlight = 2 * Runtime.getRuntime().availableProcessors();
+    private Consumer<AutoJsonDecoder> decoderOptions = decoder -> { };
+    private int optionsVersion; // bumped by decoderOptions(), for the workers to re-apply them
+    
+    /**
+     * @param schema Reader's schema, to decode the json with.
+     * @param datumReaders Creates a datum reader for each thread, e.g. {@code () -> new GenericDatumReader<>(schema)}.
+     */
+    public AutoJsonParallelReader(Schema schema, Supplier<? extends DatumReader<D>> datumReaders) {
+        this.schema = schema;
+        this.datumReaders = datumReaders;
+    }
+    
+    /**
+     * @param executor Runs the decoding of chunks; the common fork-join pool by default.
+     */
+    public AutoJsonParallelReader<D> executor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+    
+    /**
+     * @param chunkSize Bytes of input per task, rounded up to the end of a line.
+     */
+    public AutoJsonParallelReader<D> chunkSize(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Expected a positive chunk size. Got " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+    
+    /**
+     * @param maxChunksInFlight How many chunks may be read ahead of the consumer.
+     */
+    public AutoJsonParallelReader<D> maxChunksInFlight(int maxChunksInFlight) {
+        if (maxChunksInFlight < 1) {
+            throw new IllegalArgumentException("Expected a positive number of chunks in flight. Got " + maxChunksInFlight);
+        }
+        this.maxChunksInFlight = maxChunksInFlight;
+        return this;
+    }
+    
+    /**
+     * @param decoderOptions Applied to the decoder of each thread, e.g. {@code d -> d.streaming(true)},
+     *     from the next {@code read} on; they replace the previous ones.
+     */
+    public AutoJsonParallelReader<D> decoderOptions(Consumer<AutoJsonDecoder> decoderOptions) {
+        this.decoderOptions = decoderOptions;
+        optionsVersion++;
+        return this;
+    }
+    
+    /**
+     * The datums of {@code in}, in order; the stream reads {@code in} as it is consumed, but doesn't close it.
+     */
+    public Stream<AutoJsonResult<D>> read(InputStream in) {
+        return StreamSupport.stream(new Reading(in, null), false);
+    }
+    
+    /**
+     * The datums of {@code file}, in order, read through memory mapping, see {@link MappedFile}.
+     * Chunks are cut at line ends within the mapping, and each line is parsed in place, without a copy.
+     */
+    public Stream<AutoJsonResult<D>> read(Path file) throws IOException {
+        return StreamSupport.stream(new Reading(null, new MappedFile(file)), false);
+    }
+    
+    /**
+     * Calls {@code callback} with the datums of {@code in}, in order, on the calling thread.
+     */
+    public void read(InputStream in, Consumer<? super AutoJsonResult<D>> callback) {
+        read(in).forEachOrdered(callback);
+    }
+    
+    private static final class Worker<D> {
+        final AutoJsonDecoder decoder;
+        final DatumReader<D> datumReader;
+        int optionsVersion = -1; // of the options applied to the decoder
+        
+        Worker(AutoJsonDecoder decoder, DatumReader<D> datumReader) {
+            this.decoder = decoder;
+            this.datumReader = datumReader;
+        }
+    }
+    
+    /**
+     * Results of a chunk, with line numbers relative to the chunk.
+     */
+    private static final class Chunk<D> {
+        final List<AutoJsonResult<D>> results = new ArrayList<>();
+        int newlines;
+    }
+    
+    private Worker<D> worker() throws IOException {
+        Worker<D> worker = workers.get();
+        if (worker == null) {
+            worker = new Worker<>(factory.autoJsonDecoder(schema, new byte[0]), datumReaders.get());
+            workers.set(worker);
+        }
+        // the fields were set before the chunk was submitted, which happens-before this
+        if (worker.optionsVersion != optionsVersion) {
+            decoderOptions.accept(worker.decoder.resetOptions());
+            worker.optionsVersion = optionsVersion;
+        }
+        return worker;
+    }
+    
+    private Chunk<D> decode(ByteBuffer bytes) {
+        Worker<D> worker;
+        try {
+            worker = worker();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Chunk<D> chunk = new Chunk<>();
+        for (int start = bytes.position(); start < bytes.limit(); chunk.newlines++) {
+            int end = start;
+            while (end < bytes.limit() && bytes.get(end) != '\n') {
+                end++;
+            }
+            if (!isBlank(bytes, start, end)) {
+                long line = chunk.newlines + 1;
+                try {
+                    if (bytes.hasArray()) {
+                        worker.decoder.configure(bytes.array(), bytes.arrayOffset() + start, end - start);
+                    } else { // mapped
+                        worker.decoder.configure(MappedFile.parser(factory.mapper.getFactory(), bytes.slice(start, end - start)));
+                    }
+                    if (worker.decoder.plan.leafless) { // the datum reader reads no json, see AutoJsonDatumReader
+                        worker.decoder.skipDatum();
+                    }
+                    D datum = worker.datumReader.read(null, worker.decoder);
+                    if (worker.decoder.tokenMatcher.parser.nextToken() != null) {
+                        throw new AvroTypeException("Expected a single json value per line");
+                    }
+                    chunk.results.add(new AutoJsonResult<>(line, datum, null));
+                } catch (IOException | RuntimeException e) {
+                    chunk.results.add(new AutoJsonResult<>(line, null, e));
+                }
+            }
+            start = end + 1;
+        }
+        return chunk;
+    }
+    
+    private static boolean isBlank(ByteBuffer bytes, int start, int end) {
+        for (int i = start; i < end; i++) {
+            byte b = bytes.get(i);
+            if (b != ' ' && b != '\t' && b != '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private final class Reading extends Spliterators.AbstractSpliterator<AutoJsonResult<D>> {
+        private final InputStream in;
+        private final MappedFile file; // instead of in
+        private final ArrayDeque<CompletableFuture<Chunk<D>>> inFlight = new ArrayDeque<>();
+        private byte[] rest = new byte[0]; // the partial last line of the previous chunk
+        private boolean eof;
+        private long lines; // before the current chunk
+        private Chunk<D> current;
+        private Iterator<AutoJsonResult<D>> results = List.<AutoJsonResult<D>>of().iterator();
+        
+        Reading(InputStream in, MappedFile file) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.in = in;
+            this.file = file;
+        }
+        
+        @Override
+        public boolean tryAdvance(Consumer<? super AutoJsonResult<D>> action) {
+            while (!results.hasNext()) {
+                if (current != null) {
+                    lines += current.newlines;
+                    current = null;
+                }
+                while (inFlight.size() < maxChunksInFlight && submitChunk()) {
+                    // read ahead
+                }
+                if (inFlight.isEmpty()) {
+                    return false;
+                }
+                current = inFlight.poll().join();
+                results = current.results.iterator();
+            }
+            AutoJsonResult<D> result = results.next();
+            action.accept(new AutoJsonResult<>(lines + result.line(), result.datum(), result.error()));
+            return true;
+        }
+        
+        private boolean submitChunk() {
+            ByteBuffer chunk = file != null ? file.nextChunk(chunkSize) : readChunk();
+            if (chunk == null) {
+                return false;
+            }
+            inFlight.add(CompletableFuture.supplyAsync(() -> decode(chunk), executor));
+            return true;
+        }
+        
+        /**
+         * The next lines of {@code in}, or null at its end.
+         */
+        private ByteBuffer readChunk() {
+            if (eof && rest.length == 0) {
+                return null;
+            }
+            byte[] bytes = Arrays.copyOf(rest, Math.max(chunkSize, 2 * rest.length));
+            int length = rest.length;
+            int end;
+            try {
+                while (true) {
+                    while (length < bytes.length && !eof) {
+                        int n = in.read(bytes, length, bytes.length - length);
+                        if (n == -1) {
+                            eof = true;
+                        } else {
+                            length += n;
+                        }
+                    }
+                    end = eof ? length : lastLineEnd(bytes, length);
+                    if (end != -1) {
+                        break;
+                    }
+                    bytes = Arrays.copyOf(bytes, 2 * bytes.length); // a line longer than a chunk
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (length == 0) {
+                return null;
+            }
+            rest = Arrays.copyOfRange(bytes, end, length);
+            return ByteBuffer.wrap(bytes, 0, end);
+        }
+        
+        private int lastLineEnd(byte[] bytes, int length) {
+            for (int i = length - 1; i >= 0; i--) {
+                if (bytes[i] == '\n') {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+/**
+ * A datum, or why the json where it starts couldn't be decoded,
+ * as {@link AutoJsonParallelReader} and {@link AutoJsonFeeder} pass them on.
+ */
+public final class AutoJsonResult<D> {
+    private final long line;
+    private final D datum;
+    private final Exception error;
+    
+    AutoJsonResult(long line, D datum, Exception error) {
+        this.line = line;
+        this.datum = datum;
+        this.error = error;
+    }
+    
+    /**
+     * The line number in the input, from 1.
+     */
+    public long line() {
+        return line;
+    }
+    
+    /**
+     * The datum; null if there is an error.
+     */
+    public D datum() {
+        return datum;
+    }
+    
+    /**
+     * Why the datum couldn't be decoded, or null.
+     */
+    public Exception error() {
+        return error;
+    }
+}
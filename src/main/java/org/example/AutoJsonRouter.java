@@ -0,0 +1,267 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeType;
+import org.apache.avro.AvroTypeException;
+import org.apache.avro.Schema;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes json whose datums may be of any of several reader's schemas: each datum is parsed once,
+ * and decoded with the one schema it matches.
+ * <p>
+ *     A schema is only matched in full if the datum passes its discriminators, checked on the tree first:
+ *     the json type of the root, the required fields of records (those without a usable default),
+ *     the json types of their values, and enum symbols and fixed sizes.
+ *     As at the root of a datum for a union, a datum that several schemas match is ambiguous.
+ * </p>
+ * <p>
+ *     The root discriminators are indexed across the schemas when the router is built:
+ *     by json type, by the t of {t:v}, and by required field name and alias, for schemas whose root is a record.
+ *     A datum only looks up its root type and field names, then the schemas left are checked and matched one by one.
+ * </p>
+ * <pre>{@code
+ * AutoJsonRouter router = new AutoJsonRouter(List.of(click, view)).configure(in);
+ * Schema schema = router.next();
+ * GenericRecord datum = datumReaders.get(schema).read(null, router.decoder());
+ * }</pre>
+ */
+public class AutoJsonRouter {
+    private final ObjectMapper mapper = AutoJsonDecoderFactory.get().mapper;
+    private final AutoJsonDecoder[] decoders; // by schema, of the current datum
+    // the index, see candidates()
+    private final BitSet[] byKind = new BitSet[JsonNodeType.values().length]; // schemas whose root may take the json type
+    private final Map<String, BitSet> byWrapKey = new HashMap<>(); // schemas whose root may take {t:v}, by t
+    private final Map<String, int[]> requiredByKey = new HashMap<>(); // name or alias -> required fields of root records
+    private int[] requiredSchemas = {}; // by required field, numbered across the schemas
+    private final int[] requiredCounts; // by schema
+    private final BitSet noneRequired = new BitSet(); // schemas whose root has no required field
+    private final BitSet seen = new BitSet(); // required fields of the current datum
+    private final int[] seenCounts; // by schema
+    private JsonParser parser;
+    private AutoJsonDecoder matched;
+    private boolean breakAmbiguity;
+    
+    /**
+     * @param readersSchemas The schemas a datum may be of, in the order ambiguities are reported.
+     */
+    public AutoJsonRouter(List<Schema> readersSchemas) {
+        this.decoders = new AutoJsonDecoder[readersSchemas.size()];
+        for (int i = 0; i < decoders.length; i++) {
+            decoders[i] = new AutoJsonDecoder(DecodingPlan.of(readersSchemas.get(i)), List.of());
+        }
+        for (JsonNodeType kind : JsonNodeType.values()) {
+            byKind[kind.ordinal()] = new BitSet();
+            for (int i = 0; i < decoders.length; i++) {
+                if (decoders[i].plan.root.mayTakeKind(kind)) {
+                    byKind[kind.ordinal()].set(i);
+                }
+            }
+        }
+        for (int i = 0; i < decoders.length; i++) {
+            for (String key : decoders[i].plan.root.wrapKeys()) {
+                byWrapKey.computeIfAbsent(key, k -> new BitSet()).set(i);
+            }
+        }
+        this.requiredCounts = new int[decoders.length];
+        this.seenCounts = new int[decoders.length];
+        indexRequiredFields();
+    }
+    
+    /**
+     * Which fields are required depends on breakAmbiguity, see {@link DecodingPlan.Field#defaultLeaves(boolean)}.
+     */
+    private void indexRequiredFields() {
+        requiredByKey.clear();
+        noneRequired.clear();
+        Arrays.fill(requiredCounts, 0);
+        int count = 0;
+        for (int i = 0; i < decoders.length; i++) {
+            DecodingPlan.Node root = decoders[i].plan.root;
+            if (root.type == Schema.Type.RECORD) {
+                for (DecodingPlan.Field field : root.fields) {
+                    if (field.defaultLeaves(breakAmbiguity) != null) {
+                        continue;
+                    }
+                    if (count == requiredSchemas.length) {
+                        requiredSchemas = Arrays.copyOf(requiredSchemas, Math.max(16, 2 * count));
+                    }
+                    requiredSchemas[count] = i;
+                    addRequiredKey(field.name, count);
+                    for (String alias : field.aliases) {
+                        addRequiredKey(alias, count);
+                    }
+                    count++;
+                    requiredCounts[i]++;
+                }
+            }
+            if (requiredCounts[i] == 0) {
+                noneRequired.set(i);
+            }
+        }
+    }
+    
+    private void addRequiredKey(String key, int field) {
+        int[] fields = requiredByKey.get(key);
+        if (fields == null) {
+            requiredByKey.put(key, new int[] { field });
+        } else if (fields[fields.length - 1] != field) {
+            fields = Arrays.copyOf(fields, fields.length + 1);
+            fields[fields.length - 1] = field;
+            requiredByKey.put(key, fields);
+        }
+    }
+    
+    /**
+     * The schemas whose root discriminators {@code node} passes, from the index;
+     * a superset of those whose {@link DecodingPlan.Node#mayTake(JsonNode, boolean)} is true.
+     */
+    private BitSet candidates(JsonNode node) {
+        BitSet candidates = (BitSet) byKind[node.getNodeType().ordinal()].clone();
+        if (node.isObject()) {
+            candidates.and(withRequiredFields(node));
+            if (node.size() == 1) { // may be {t:v}
+                BitSet wrapped = byWrapKey.get(node.fieldNames().next());
+                if (wrapped != null) {
+                    candidates.or(wrapped);
+                }
+            }
+        }
+        return candidates;
+    }
+    
+    /**
+     * The schemas {@code node} has all the required root fields of, by name or alias.
+     */
+    private BitSet withRequiredFields(JsonNode node) {
+        BitSet complete = (BitSet) noneRequired.clone();
+        for (Iterator<String> keys = node.fieldNames(); keys.hasNext(); ) {
+            int[] fields = requiredByKey.get(keys.next());
+            if (fields == null) {
+                continue;
+            }
+            for (int field : fields) {
+                if (!seen.get(field)) {
+                    seen.set(field);
+                    int schema = requiredSchemas[field];
+                    if (++seenCounts[schema] == requiredCounts[schema]) {
+                        complete.set(schema);
+                    }
+                }
+            }
+        }
+        for (int field = seen.nextSetBit(0); field >= 0; field = seen.nextSetBit(field + 1)) {
+            seenCounts[requiredSchemas[field]] = 0;
+        }
+        seen.clear();
+        return complete;
+    }
+    
+    /**
+     * @param breakAmbiguity If true, turn off rule#11 and rule#12 within each schema, see {@link AutoJsonDecoder#breakAmbiguity(boolean)}.
+     */
+    public AutoJsonRouter breakAmbiguity(boolean breakAmbiguity) {
+        this.breakAmbiguity = breakAmbiguity;
+        for (AutoJsonDecoder decoder : decoders) {
+            decoder.breakAmbiguity(breakAmbiguity);
+        }
+        indexRequiredFields();
+        return this;
+    }
+    
+    public AutoJsonRouter configure(InputStream in) throws IOException {
+        return configure(mapper.createParser(in));
+    }
+    
+    public AutoJsonRouter configure(String in) throws IOException {
+        return configure(mapper.createParser(in));
+    }
+    
+    public AutoJsonRouter configure(byte[] in) throws IOException {
+        return configure(mapper.createParser(in));
+    }
+    
+    private AutoJsonRouter configure(JsonParser parser) {
+        this.parser = parser;
+        this.matched = null;
+        return this;
+    }
+    
+    /**
+     * Parses and matches the next datum.
+     * @return The schema it matched; read it from {@link #decoder()}.
+     * @throws EOFException If there's no datum left.
+     * @throws AvroTypeException If it matches no schema, or several.
+     */
+    public Schema next() throws IOException {
+        matched = null;
+        JsonNode node = mapper.readTree(parser);
+        if (node == null) {
+            throw new EOFException();
+        }
+        List<String> matches = new ArrayList<>();
+        List<String> mismatches = new ArrayList<>();
+        BitSet candidates = candidates(node);
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            AutoJsonDecoder decoder = decoders[i];
+            if (!decoder.plan.root.mayTake(node, breakAmbiguity)) { // ruled out by the discriminators deeper down
+                continue;
+            }
+            if (decoder.match(node)) {
+                matched = matched == null ? decoder : matched;
+                matches.add(decoder.plan.schema.getFullName());
+            } else {
+                mismatches.add(decoder.plan.schema.getFullName() + ": " + decoder.mismatch.message());
+            }
+        }
+        if (matches.size() > 1) {
+            matched = null;
+            throw new AvroTypeException("Ambiguity: " + String.join(", ", matches) + ": " + node.getNodeType());
+        }
+        if (matched == null) {
+            throw new AvroTypeException(mismatches.isEmpty()
+                ? "No schema takes " + node.getNodeType()
+                : "No schema matches. " + String.join("; ", mismatches));
+        }
+        return matched.plan.schema;
+    }
+    
+    /**
+     * The decoder of the schema the last datum matched, to read it from once.
+     */
+    public AutoJsonDecoder decoder() {
+        if (matched == null) {
+            throw new IllegalStateException("No datum matched");
+        }
+        return matched;
+    }
+}
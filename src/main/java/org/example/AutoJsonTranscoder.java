@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import org.apache.avro.AvroTypeException;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.example.DecodingPlan.Field;
+import org.example.DecodingPlan.Node;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Converts json to Avro binary with the reader's schema only:
+ * the leaves {@link AutoJsonDecoder} matched are written straight to a {@link BinaryEncoder},
+ * without building a datum in between.
+ * <p>
+ *     The binary is what {@code GenericDatumWriter(schema)} writes for the datum
+ *     {@code GenericDatumReader(schema, schema)} reads from the decoder.
+ *     A datum is matched as a whole before any of it is written, so a datum that fails writes nothing;
+ *     unless it's matched a block at a time, see {@link AutoJsonDecoder#blockSize(int)},
+ *     in which case the blocks are written as they are matched.
+ *     Like the datum reader, a schema whose values have no leaves, e.g. {@code "null"} or a record of nulls,
+ *     reads no json for {@link #transcode(BinaryEncoder)}; {@code transcodeAll} then writes a datum
+ *     per json value left, skipped without being matched, rather than datums forever.
+ * </p>
+ */
+public class AutoJsonTranscoder {
+    private final AutoJsonDecoder decoder;
+    // a datum at a time, for a DataFileWriter
+    private final Buffer buffer = new Buffer();
+    private BinaryEncoder bufferEncoder;
+    
+    /**
+     * @param decoder The json, and the schema to write it with.
+     */
+    public AutoJsonTranscoder(AutoJsonDecoder decoder) {
+        this.decoder = decoder;
+    }
+    
+    /**
+     * Writes the next datum to {@code out}.
+     * @throws EOFException If there's no datum left.
+     */
+    public void transcode(BinaryEncoder out) throws IOException {
+        write(decoder.plan.root, decoder.plan.leafless ? null : decoder.tape(), out);
+    }
+    
+    /**
+     * Writes the datums left to {@code out}, then flushes it.
+     * @return The number of datums.
+     */
+    public long transcodeAll(BinaryEncoder out) throws IOException {
+        long count = 0;
+        for (LeafTape tape = next(); tape != null; tape = next()) {
+            write(decoder.plan.root, tape, out);
+            count++;
+        }
+        out.flush();
+        return count;
+    }
+    
+    /**
+     * Appends the datums left to {@code writer}, which batches them into blocks
+     * with its codec and sync interval; its schema must be the decoder's.
+     * @return The number of datums.
+     */
+    public long transcodeAll(DataFileWriter<?> writer) throws IOException {
+        long count = 0;
+        for (LeafTape tape = next(); tape != null; tape = next()) {
+            buffer.reset();
+            bufferEncoder = EncoderFactory.get().directBinaryEncoder(buffer, bufferEncoder);
+            write(decoder.plan.root, tape, bufferEncoder);
+            writer.appendEncoded(buffer.bytes());
+            count++;
+        }
+        return count;
+    }
+    
+    /**
+     * The leaves of the next datum, or null at the end of the input.
+     */
+    private LeafTape next() throws IOException {
+        if (decoder.plan.leafless) {
+            return decoder.skipDatum() ? decoder.tape : null;
+        }
+        try {
+            return decoder.tape();
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+    
+    private void write(Node schema, LeafTape tape, BinaryEncoder out) throws IOException {
+        switch (schema.type) {
+            case RECORD:
+                for (Field field : schema.fields) {
+                    write(field.node, tape, out);
+                }
+                break;
+            case ENUM:
+                out.writeEnum((int) tape.nextLong());
+                break;
+            case ARRAY:
+                out.writeArrayStart();
+                writeItems(schema, tape, out);
+                out.writeArrayEnd();
+                break;
+            case MAP:
+                out.writeMapStart();
+                writeItems(schema, tape, out);
+                out.writeMapEnd();
+                break;
+            case UNION:
+                int index = (int) tape.nextLong();
+                out.writeIndex(index);
+                write(schema.branches[index], tape, out);
+                break;
+            case FIXED:
+                AutoJsonDecoder.checkFixed(tape, schema.fixedSize).nextFixed(out);
+                break;
+            case STRING:
+            case BYTES:
+                tape.nextBytes(out);
+                break;
+            case INT:
+                out.writeInt(AutoJsonDecoder.readInt(tape));
+                break;
+            case LONG:
+                out.writeLong(AutoJsonDecoder.readLong(tape));
+                break;
+            case FLOAT:
+                out.writeFloat(AutoJsonDecoder.readFloat(tape));
+                break;
+            case DOUBLE:
+                out.writeDouble(AutoJsonDecoder.readDouble(tape));
+                break;
+            case BOOLEAN:
+                out.writeBoolean(tape.nextLong() != 0);
+                break;
+            case NULL:
+                out.writeNull();
+                break;
+            default:
+                throw new AvroTypeException("Unknown type: " + schema.schema);
+        }
+    }
+    
+    /**
+     * The blocks of an array or map; a map entry is its key, then its value.
+     */
+    private void writeItems(Node schema, LeafTape tape, BinaryEncoder out) throws IOException {
+        tape.skip(1); // SKIP
+        for (long count = tape.nextLong(); count != 0; count = decoder.arrayNext()) { // the next block may have to be matched
+            out.setItemCount(count);
+            for (long i = 0; i < count; i++) {
+                out.startItem();
+                if (schema.type == Schema.Type.MAP) {
+                    tape.nextBytes(out);
+                }
+                write(schema.items, tape, out);
+            }
+        }
+    }
+    
+    private static final class Buffer extends ByteArrayOutputStream {
+        ByteBuffer bytes() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+}
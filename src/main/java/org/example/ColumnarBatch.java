@@ -0,0 +1,497 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import org.apache.avro.AvroTypeException;
+import org.apache.avro.Schema;
+import org.example.DecodingPlan.Node;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Datums laid out in columns of primitive arrays, one column per position in the reader's schema:
+ * {@link #fill(AutoJsonDecoder, int)} writes the leaves {@link AutoJsonDecoder} matched straight to the columns,
+ * without building a datum in between.
+ * <p>
+ *     The path of a column is {@code a.b} for the field b of the record at a, {@code a[]} for the items of the array at a,
+ *     {@code a{key}} and {@code a{}} for the keys and values of the map at a, and {@code a<B>} for the branch B
+ *     of the union at a, e.g. {@code a<long>} or {@code a<Point>}, or {@code a<geo.Point>} if another branch
+ *     is a Point of another namespace; the root is {@code ""}.
+ *     A union with a single branch besides null, e.g. an optional field, has no column: its branch takes its path.
+ *     A column has a slot per slot of its parent, or per item for the items of an array or map;
+ *     the root has a slot per datum. Where a union takes another branch, or null,
+ *     the columns under the branches not taken get a null slot, see {@link Column#isNull(int)}.
+ * </p>
+ * <p>
+ *     The buffers are kept from a batch to the next, and only grow: they may be longer than {@link Column#size()}.
+ *     Recursive schemas have no columnar layout. Not thread-safe.
+ * </p>
+ */
+public final class ColumnarBatch {
+    private final DecodingPlan plan;
+    private final Column root;
+    private final Map<String, Column> columns = new LinkedHashMap<>(); // by path, depth first
+    
+    /**
+     * @param readersSchema The schema of the decoders to fill the batch from.
+     * @throws IllegalArgumentException If the schema is recursive.
+     */
+    public ColumnarBatch(Schema readersSchema) {
+        this.plan = DecodingPlan.of(readersSchema);
+        this.root = column("", plan.root, false, new HashSet<>());
+    }
+    
+    private Column column(String path, Node schema, boolean nullable, Set<String> enclosing) {
+        Column column = new Column(path, schema, nullable);
+        long others = schema.type != Schema.Type.UNION ? 0
+            : Arrays.stream(schema.branches).filter(branch -> branch.type != Schema.Type.NULL).count();
+        if (others != 1) { // else the union's single branch takes its path
+            columns.put(path, column);
+        }
+        switch (schema.type) {
+            case RECORD:
+                if (!enclosing.add(schema.schema.getFullName())) {
+                    throw new IllegalArgumentException("Recursive schema: " + schema.schema.getFullName() + " has no columnar layout");
+                }
+                column.children = new Column[schema.fields.length];
+                for (int i = 0; i < schema.fields.length; i++) {
+                    String name = schema.fields[i].name;
+                    column.children[i] = column(path.isEmpty() ? name : path + "." + name, schema.fields[i].node, nullable, enclosing);
+                }
+                enclosing.remove(schema.schema.getFullName());
+                break;
+            case ARRAY:
+                column.children = new Column[] {column(path + "[]", schema.items, false, enclosing)};
+                break;
+            case MAP:
+                Column keys = new Column(path + "{key}", new Node(Schema.create(Schema.Type.STRING)), false);
+                columns.put(keys.path, keys);
+                column.children = new Column[] {keys, column(path + "{}", schema.items, false, enclosing)};
+                break;
+            case UNION:
+                column.nullable |= others < schema.branches.length;
+                column.children = new Column[schema.branches.length];
+                for (int i = 0; i < schema.branches.length; i++) {
+                    Node branch = schema.branches[i];
+                    if (branch.type != Schema.Type.NULL) {
+                        String branchPath = others == 1 ? path : path + "<" + branchName(schema, branch) + ">";
+                        column.children[i] = column(branchPath, branch, nullable || schema.branches.length > 1, enclosing);
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+        return column;
+    }
+    
+    /**
+     * The simple name of {@code branch}, or its full name if another branch of {@code union} has the same simple name.
+     */
+    private static String branchName(Node union, Node branch) {
+        for (Node other : union.branches) {
+            if (other != branch && other.name.equals(branch.name)) {
+                return branch.schema.getFullName();
+            }
+        }
+        return branch.name;
+    }
+    
+    /**
+     * The column at {@code path}, see {@link ColumnarBatch}.
+     * @throws IllegalArgumentException If there's none.
+     */
+    public Column column(String path) {
+        Column column = columns.get(path);
+        if (column == null) {
+            throw new IllegalArgumentException("No column " + path + " in " + columns.keySet());
+        }
+        return column;
+    }
+    
+    /**
+     * All the columns, depth first: a record's before its fields'.
+     */
+    public List<Column> columns() {
+        return Collections.unmodifiableList(new ArrayList<>(columns.values()));
+    }
+    
+    /**
+     * The number of datums in the batch.
+     */
+    public int rows() {
+        return root.size;
+    }
+    
+    /**
+     * Clears the batch, then fills it with the next {@code maxRows} datums of {@code decoder}.
+     * @return The number of rows, less than {@code maxRows} only at the end of the input.
+     * @throws AvroTypeException If a datum doesn't match; the batch keeps the rows before it.
+     */
+    public int fill(AutoJsonDecoder decoder, int maxRows) throws IOException {
+        if (!decoder.plan.schema.equals(plan.schema)) {
+            throw new IllegalArgumentException("Expected a decoder of " + plan.schema.getFullName() + ". Got " + decoder.plan.schema.getFullName());
+        }
+        truncate(root, 0);
+        while (root.size < maxRows) {
+            LeafTape tape;
+            try {
+                tape = decoder.tape();
+            } catch (EOFException e) {
+                break;
+            }
+            int rows = root.size;
+            try {
+                write(root, tape, decoder);
+            } catch (IOException | RuntimeException e) { // the next block of a root collection may not match
+                truncate(root, rows);
+                throw e;
+            }
+        }
+        return root.size;
+    }
+    
+    private void write(Column column, LeafTape tape, AutoJsonDecoder decoder) throws IOException {
+        if (column == null) { // a null branch
+            return;
+        }
+        int slot = column.add(true);
+        switch (column.node.type) {
+            case RECORD:
+                for (Column field : column.children) {
+                    write(field, tape, decoder);
+                }
+                break;
+            case ENUM:
+                column.ints[slot] = (int) tape.nextLong();
+                break;
+            case ARRAY:
+            case MAP:
+                writeItems(column, slot, tape, decoder);
+                break;
+            case UNION:
+                int index = (int) tape.nextLong();
+                column.ints[slot] = index;
+                for (Column branch : column.children) {
+                    if (branch == column.children[index]) {
+                        write(branch, tape, decoder);
+                    } else {
+                        writeNull(branch);
+                    }
+                }
+                if (column.children[index] == null) {
+                    setBit(column.validity, slot, false);
+                }
+                break;
+            case FIXED:
+                AutoJsonDecoder.checkFixed(tape, column.node.fixedSize);
+                writeBytes(column, slot, tape);
+                break;
+            case STRING:
+            case BYTES:
+                writeBytes(column, slot, tape);
+                break;
+            case INT:
+                column.ints[slot] = AutoJsonDecoder.readInt(tape);
+                break;
+            case LONG:
+                column.longs[slot] = AutoJsonDecoder.readLong(tape);
+                break;
+            case FLOAT:
+                column.floats[slot] = AutoJsonDecoder.readFloat(tape);
+                break;
+            case DOUBLE:
+                column.doubles[slot] = AutoJsonDecoder.readDouble(tape);
+                break;
+            case BOOLEAN:
+                setBit(column.longs, slot, tape.nextLong() != 0);
+                break;
+            case NULL:
+                break;
+            default:
+                throw new AvroTypeException("Unknown type: " + column.node.schema);
+        }
+    }
+    
+    /**
+     * The blocks of an array or map, as in {@link AutoJsonTranscoder}.
+     */
+    private void writeItems(Column column, int slot, LeafTape tape, AutoJsonDecoder decoder) throws IOException {
+        boolean map = column.node.type == Schema.Type.MAP;
+        Column items = column.children[map ? 1 : 0];
+        tape.skip(1); // SKIP
+        for (long count = tape.nextLong(); count != 0; count = decoder.arrayNext()) { // the next block may have to be matched
+            for (long i = 0; i < count; i++) {
+                if (map) {
+                    writeBytes(column.children[0], column.children[0].add(true), tape);
+                }
+                write(items, tape, decoder);
+            }
+        }
+        column.offsets[slot + 1] = items.size;
+    }
+    
+    private static void writeBytes(Column column, int slot, LeafTape tape) {
+        int start = column.offsets[slot];
+        int length = tape.peekLength();
+        if (column.data.length < start + length) {
+            column.data = Arrays.copyOf(column.data, Math.max(2 * column.data.length, start + length));
+        }
+        tape.nextBytes(column.data, start);
+        column.offsets[slot + 1] = start + length;
+    }
+    
+    /**
+     * A null slot in {@code column} and in the columns under it; an array or map has no items there.
+     */
+    private static void writeNull(Column column) {
+        if (column == null) {
+            return;
+        }
+        int slot = column.add(false);
+        if (column.node.type == Schema.Type.RECORD || column.node.type == Schema.Type.UNION) {
+            if (column.ints != null) {
+                column.ints[slot] = -1;
+            }
+            for (Column child : column.children) {
+                writeNull(child);
+            }
+        }
+    }
+    
+    /**
+     * Drops the slots of {@code column} from {@code size} on, and those of the columns under them.
+     */
+    private static void truncate(Column column, int size) {
+        column.size = size;
+        if (column.children == null) {
+            return;
+        }
+        int childSize = column.offsets != null ? column.offsets[size] : size; // the items of an array or map
+        for (Column child : column.children) {
+            if (child != null) {
+                truncate(child, childSize);
+            }
+        }
+    }
+    
+    private static void setBit(long[] bits, int index, boolean value) {
+        if (value) {
+            bits[index >>> 6] |= 1L << index;
+        } else {
+            bits[index >>> 6] &= ~(1L << index);
+        }
+    }
+    
+    private static boolean bit(long[] bits, int index) {
+        return (bits[index >>> 6] & 1L << index) != 0;
+    }
+    
+    /**
+     * The slots of a position in the schema. Only the buffers of its type are non-null;
+     * the values of a null slot are 0, or empty.
+     */
+    public static final class Column {
+        final String path;
+        final Node node;
+        boolean nullable;
+        Column[] children; // RECORD: by field; UNION: by branch, null for null; ARRAY: the items; MAP: the keys, the values
+        int size;
+        int capacity; // of the buffers, in slots
+        long[] validity; // a bit per slot, set if not null; null if never null
+        int[] ints; // INT; ENUM: the ordinal; UNION: the branch, -1 in a null slot
+        long[] longs; // LONG; BOOLEAN: a bit per slot
+        float[] floats; // FLOAT
+        double[] doubles; // DOUBLE
+        int[] offsets; // STRING, BYTES, FIXED: of the values in data, a slot's ending at the next slot's; ARRAY, MAP: of the items
+        byte[] data; // STRING: UTF-8; BYTES, FIXED
+        
+        Column(String path, Node node, boolean nullable) {
+            this.path = path;
+            this.node = node;
+            this.nullable = nullable;
+        }
+        
+        /**
+         * Appends a slot, null or not; returns its index.
+         */
+        int add(boolean valid) {
+            int slot = size++;
+            if (slot == capacity) {
+                grow(Math.max(16, 2 * slot));
+            }
+            if (validity != null) {
+                setBit(validity, slot, valid);
+            }
+            if (offsets != null) {
+                offsets[slot + 1] = offsets[slot];
+            }
+            if (!valid) {
+                switch (node.type) {
+                    case INT:
+                    case ENUM:
+                        ints[slot] = 0;
+                        break;
+                    case LONG:
+                        longs[slot] = 0;
+                        break;
+                    case FLOAT:
+                        floats[slot] = 0;
+                        break;
+                    case DOUBLE:
+                        doubles[slot] = 0;
+                        break;
+                    case BOOLEAN:
+                        setBit(longs, slot, false);
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return slot;
+        }
+        
+        private void grow(int capacity) {
+            this.capacity = capacity;
+            int words = (capacity + 63) >>> 6;
+            if (nullable) {
+                validity = validity == null ? new long[words] : Arrays.copyOf(validity, words);
+            }
+            switch (node.type) {
+                case INT:
+                case ENUM:
+                case UNION:
+                    ints = ints == null ? new int[capacity] : Arrays.copyOf(ints, capacity);
+                    break;
+                case LONG:
+                    longs = longs == null ? new long[capacity] : Arrays.copyOf(longs, capacity);
+                    break;
+                case BOOLEAN:
+                    longs = longs == null ? new long[words] : Arrays.copyOf(longs, words);
+                    break;
+                case FLOAT:
+                    floats = floats == null ? new float[capacity] : Arrays.copyOf(floats, capacity);
+                    break;
+                case DOUBLE:
+                    doubles = doubles == null ? new double[capacity] : Arrays.copyOf(doubles, capacity);
+                    break;
+                case STRING:
+                case BYTES:
+                case FIXED:
+                    data = data == null ? new byte[capacity] : data;
+                    offsets = offsets == null ? new int[capacity + 1] : Arrays.copyOf(offsets, capacity + 1);
+                    break;
+                case ARRAY:
+                case MAP:
+                    offsets = offsets == null ? new int[capacity + 1] : Arrays.copyOf(offsets, capacity + 1);
+                    break;
+                default:
+                    break;
+            }
+        }
+        
+        /**
+         * E.g. {@code user.emails[]}, see {@link ColumnarBatch}.
+         */
+        public String path() {
+            return path;
+        }
+        
+        public Schema schema() {
+            return node.schema;
+        }
+        
+        /**
+         * The number of slots.
+         */
+        public int size() {
+            return size;
+        }
+        
+        /**
+         * True if the slot is null: a union above it took another branch, or null.
+         */
+        public boolean isNull(int slot) {
+            return validity != null && !bit(validity, slot);
+        }
+        
+        /**
+         * The values of an int column, the ordinals of an enum, the branches of a union (-1 where null).
+         */
+        public int[] ints() {
+            return ints;
+        }
+        
+        /**
+         * The values of a long column; for a boolean column, a bit per slot, see {@link #isTrue(int)}.
+         */
+        public long[] longs() {
+            return longs;
+        }
+        
+        public float[] floats() {
+            return floats;
+        }
+        
+        public double[] doubles() {
+            return doubles;
+        }
+        
+        public boolean isTrue(int slot) {
+            return bit(longs, slot);
+        }
+        
+        /**
+         * For a string, bytes or fixed column: where each slot's value starts in {@link #data()}, and ends at the next one's;
+         * for an array or map: where each slot's items start in the items' columns, and end at the next one's.
+         * Has {@code size() + 1} offsets.
+         */
+        public int[] offsets() {
+            return offsets;
+        }
+        
+        /**
+         * The values of a string (as UTF-8), bytes or fixed column, see {@link #offsets()}.
+         */
+        public byte[] data() {
+            return data;
+        }
+        
+        /**
+         * The value of a slot of a string column, or null.
+         */
+        public String string(int slot) {
+            return isNull(slot) ? null : new String(data, offsets[slot], offsets[slot + 1] - offsets[slot], StandardCharsets.UTF_8);
+        }
+        
+        @Override
+        public String toString() {
+            return path + ": " + node.schema.getType() + " " + size;
+        }
+    }
+}
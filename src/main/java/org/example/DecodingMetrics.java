@@ -0,0 +1,143 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counters of the work {@link AutoJsonDecoder} does, see {@link AutoJsonDecoder#metrics(DecodingMetrics)}.
+ * <p>
+ *     Json values visited, union branch trials and their failures, and ambiguity checks
+ *     (a second interpretation tried after a first one matched) are also counted per record field,
+ *     by the innermost field they are under, e.g. {@code ns.Thing.parts}; "$" is the datum itself.
+ *     So is the time spent matching, each field's own, without the fields nested in it;
+ *     when not streaming, parsing the tree of a datum counts for "$".
+ *     Not thread safe: a metrics object is for the decoders of one thread.
+ * </p>
+ */
+public final class DecodingMetrics {
+    static final int NODES = 0;
+    static final int BRANCH_TRIALS = 1;
+    static final int BRANCH_FAILURES = 2;
+    static final int AMBIGUITY_CHECKS = 3;
+    static final int NANOS = 4;
+    private static final String ROOT = "$";
+    
+    long records;
+    long bytes;
+    long nanos;
+    final long[] totals = new long[4];
+    private final Map<String, long[]> byPath = new LinkedHashMap<>();
+    
+    /**
+     * Counters of each field of {@code plan}, by {@link DecodingPlan.Field#id}, then of the root;
+     * made anew per decoder rather than kept per plan, which may be dropped and compiled again.
+     */
+    long[][] rows(DecodingPlan plan) {
+        long[][] rows = new long[plan.fieldCount() + 1][];
+        for (int id = 0; id < plan.fieldCount(); id++) {
+            rows[id] = byPath.computeIfAbsent(plan.field(id).path, path -> new long[5]);
+        }
+        rows[plan.fieldCount()] = byPath.computeIfAbsent(ROOT, path -> new long[5]);
+        return rows;
+    }
+    
+    /** Datums decoded. */
+    public long records() {
+        return records;
+    }
+    
+    /** Json bytes (or chars, for a String input) parsed by the datums. */
+    public long bytes() {
+        return bytes;
+    }
+    
+    /** Time spent matching the datums. */
+    public long nanos() {
+        return nanos;
+    }
+    
+    /** Json values visited, including revisits by rule#10-#12. */
+    public long nodes() {
+        return totals[NODES];
+    }
+    
+    public long branchTrials() {
+        return totals[BRANCH_TRIALS];
+    }
+    
+    public long branchFailures() {
+        return totals[BRANCH_FAILURES];
+    }
+    
+    public long ambiguityChecks() {
+        return totals[AMBIGUITY_CHECKS];
+    }
+    
+    /**
+     * The counters per field path, most visited first: {nodes, branch trials, branch failures, ambiguity checks, nanos}.
+     */
+    public Map<String, long[]> byPath() {
+        List<Map.Entry<String, long[]>> entries = new ArrayList<>(byPath.entrySet());
+        entries.sort(Comparator.comparingLong((Map.Entry<String, long[]> e) -> e.getValue()[NODES]).reversed());
+        Map<String, long[]> result = new LinkedHashMap<>();
+        for (Map.Entry<String, long[]> entry : entries) {
+            if (entry.getValue()[NODES] != 0) {
+                result.put(entry.getKey(), entry.getValue().clone());
+            }
+        }
+        return result;
+    }
+    
+    public void reset() {
+        records = 0;
+        bytes = 0;
+        nanos = 0;
+        Arrays.fill(totals, 0);
+        for (long[] counters : byPath.values()) {
+            Arrays.fill(counters, 0);
+        }
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder()
+            .append("records=").append(records)
+            .append(" bytes=").append(bytes)
+            .append(" nanosPerRecord=").append(records == 0 ? 0 : nanos / records)
+            .append(" nodes=").append(nodes())
+            .append(" branchTrials=").append(branchTrials())
+            .append(" branchFailures=").append(branchFailures())
+            .append(" ambiguityChecks=").append(ambiguityChecks());
+        for (Map.Entry<String, long[]> entry : byPath().entrySet()) {
+            long[] counters = entry.getValue();
+            sb.append("\n  ").append(entry.getKey())
+                .append(": nodes=").append(counters[NODES])
+                .append(" branchTrials=").append(counters[BRANCH_TRIALS])
+                .append(" branchFailures=").append(counters[BRANCH_FAILURES])
+                .append(" ambiguityChecks=").append(counters[AMBIGUITY_CHECKS])
+                .append(" nanos=").append(counters[NANOS]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,902 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeType;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.util.internal.Accessor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reader's schema compiled once for {@link AutoJsonDecoder}.
+ * <p>
+ *     Holds field name/alias lookup tables, default values expanded into leaves,
+ *     and the tables used by rule#10/#11 to match {t:v} against a type.
+ *     A plan is immutable once built, and cached per {@link Schema} instance,
+ *     so it is shared across decoders and threads.
+ * </p>
+ */
+final class DecodingPlan {
+    private static final int MAX_CACHED = 1024;
+    private static final ConcurrentHashMap<Key, DecodingPlan> cache = new ConcurrentHashMap<>();
+    
+    // to prevent long->int etc
+    private static final Map<String, Integer> NUMBER_RANKS = Map.of("int", 0, "long", 1, "float", 2, "double", 3);
+    private static final int[] NO_INDEX = {};
+    // how many records deep Node#mayTake() looks
+    private static final int MAY_TAKE_LEVELS = 16;
+    
+    final Schema schema;
+    final Node root;
+    final boolean leafless; // see leafless()
+    private final List<Field> fieldsById = new ArrayList<>(); // fields are numbered across the plan, see Field#id
+    private final List<Node> unionsById = new ArrayList<>(); // see Node#unionId
+    
+    static DecodingPlan of(Schema schema) {
+        Key key = new Key(schema);
+        DecodingPlan plan = cache.get(key);
+        if (plan == null) {
+            // a handful of schemas is the norm; don't let a schema-per-call caller grow the cache forever
+            if (cache.size() >= MAX_CACHED) {
+                cache.clear();
+            }
+            plan = new DecodingPlan(schema);
+            DecodingPlan raced = cache.putIfAbsent(key, plan);
+            if (raced != null) {
+                plan = raced;
+            }
+        }
+        return plan;
+    }
+    
+    private DecodingPlan(Schema schema) {
+        this.schema = schema;
+        Map<Schema, Node> nodes = new IdentityHashMap<>();
+        this.root = compile(schema, nodes);
+        for (Node node : nodes.values()) {
+            if (node.branches != null) {
+                node.kindBranches = kindBranches(node);
+            }
+            if (node.fields != null) {
+                for (Field field : node.fields) {
+                    field.positions = node.fieldsByKey.get(field.name);
+                }
+            }
+            node.scalarMatcher = ScalarMatcher.of(node);
+        }
+        // defaults last: a recursive type may refer to a node that is still being compiled
+        for (Node node : nodes.values()) {
+            if (node.branches != null) {
+                for (Node branch : node.branches) {
+                    markTrial(branch);
+                }
+            }
+            if (node.fields != null) {
+                for (Field field : node.fields) {
+                    field.expandDefault();
+                    field.placeholder = new LeafTape();
+                    if (!addPlaceholder(field.node, field.placeholder, Collections.newSetFromMap(new IdentityHashMap<>()))) {
+                        field.placeholder = null;
+                    }
+                }
+            }
+        }
+        // needs the defaults; until now, everything may be ambiguous
+        for (Node node : nodes.values()) {
+            analyzeAmbiguity(node);
+            if (node.type == Schema.Type.UNION) {
+                node.bareBranches = bareBranches(node);
+            }
+        }
+        this.leafless = leafless(root, Collections.newSetFromMap(new IdentityHashMap<>()));
+    }
+    
+    /**
+     * Whether the values of {@code node} have no leaves: a null, or a record of such.
+     * Like the Decoder calls of a {@code GenericDatumReader}, a datum of such a root reads no json.
+     */
+    private static boolean leafless(Node node, Set<Node> visiting) {
+        if (node.type != Schema.Type.RECORD) {
+            return node.type == Schema.Type.NULL;
+        }
+        if (!visiting.add(node)) { // a record that always contains itself, which has no value
+            return false;
+        }
+        for (Field field : node.fields) {
+            if (!leafless(field.node, visiting)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static void markTrial(Node node) {
+        if (node.inTrial) {
+            return;
+        }
+        node.inTrial = true;
+        if (node.fields != null) {
+            for (Field field : node.fields) {
+                markTrial(field.node);
+            }
+        }
+        if (node.items != null) {
+            markTrial(node.items);
+        }
+        if (node.branches != null) {
+            for (Node branch : node.branches) {
+                markTrial(branch);
+            }
+        }
+    }
+    
+    /**
+     * Where a second interpretation can't match once the first one has, so needn't be tried
+     * (breakAmbiguity mode doesn't try it anyway):
+     * <ul>
+     *     <li>non-union: rule#10/#11 takes {t:v} with {@code t} the schema's name,
+     *         which a map, or a record whose required fields all go by that name, may take as is too;</li>
+     *     <li>union: rule#12 may take {t:v} as a record or map branch too, per {@code t}.</li>
+     * </ul>
+     */
+    private static void analyzeAmbiguity(Node node) {
+        if (node.type != Schema.Type.UNION) {
+            node.wrapAmbiguous = takesSingleProperty(node, node.name);
+            return;
+        }
+        Set<String> keys = new HashSet<>(node.indexNamed.keySet());
+        keys.addAll(node.promotions.keySet());
+        Set<String> ambiguousKeys = new HashSet<>();
+        for (String key : keys) {
+            if (!node.mayBeWrapped(key)) {
+                continue;
+            }
+            for (Node branch : node.branches) {
+                if (takesSingleProperty(branch, key)) {
+                    ambiguousKeys.add(key);
+                    break;
+                }
+            }
+        }
+        node.ambiguousKeys = ambiguousKeys;
+    }
+    
+    /**
+     * The branches whose values, as json, are read back as the same branch without {t:v}:
+     * <ul>
+     *     <li>a scalar, if no earlier branch takes its json type, e.g. not {@code long} after {@code int};</li>
+     *     <li>an array, the only one;</li>
+     *     <li>a record, if no earlier branch may take its json object, and it can't be {t:v};</li>
+     *     <li>a map, if no earlier branch takes a json object; the encoder still wraps one
+     *         with a single entry that can be {t:v}.</li>
+     * </ul>
+     */
+    private static boolean[] bareBranches(Node union) {
+        boolean[] bare = new boolean[union.branches.length];
+        for (int i = 0; i < bare.length; i++) {
+            Node branch = union.branches[i];
+            switch (branch.type) {
+                case ARRAY:
+                    bare[i] = true;
+                    break;
+                case RECORD:
+                    bare[i] = branch.fields.length != 1 || !union.mayBeWrapped(branch.fields[0].name);
+                    for (int j = 0; j < i; j++) {
+                        bare[i] &= !takesFieldsOf(union.branches[j], branch);
+                    }
+                    break;
+                case MAP:
+                    bare[i] = true;
+                    for (int j = 0; j < i; j++) {
+                        bare[i] &= union.branches[j].type != Schema.Type.RECORD && union.branches[j].type != Schema.Type.MAP;
+                    }
+                    break;
+                default:
+                    for (int[] candidates : union.kindBranches) {
+                        if (candidates.length != 0 && candidates[0] == i) {
+                            bare[i] = true;
+                        }
+                    }
+                    break;
+            }
+        }
+        return bare;
+    }
+    
+    /**
+     * By {@link JsonNodeType}, the branches of {@code union} that may take a json value of it, in order.
+     */
+    private static int[][] kindBranches(Node union) {
+        int[][] kindBranches = new int[JsonNodeType.values().length][];
+        for (JsonNodeType kind : JsonNodeType.values()) {
+            int[] indexes = new int[union.branches.length];
+            int count = 0;
+            for (int i = 0; i < union.branches.length; i++) {
+                if (union.branches[i].mayTakeKind(kind)) {
+                    indexes[count++] = i;
+                }
+            }
+            kindBranches[kind.ordinal()] = Arrays.copyOf(indexes, count);
+        }
+        return kindBranches;
+    }
+    
+    /**
+     * Whether {@code node} may match the json object of a {@code record}.
+     */
+    private static boolean takesFieldsOf(Node node, Node record) {
+        switch (node.type) {
+            case MAP:
+                return true;
+            case RECORD: // all required fields must take a property
+                for (Field field : node.fields) {
+                    if (field.defaultLeaves(false) == null && !takesAny(field, record.fields)) {
+                        return false;
+                    }
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+    
+    private static boolean takesAny(Field field, Field[] properties) {
+        for (Field property : properties) {
+            if (field.rank(property.name) != Integer.MAX_VALUE) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Whether {@code node} may match a json object with the single property {@code key}.
+     */
+    private static boolean takesSingleProperty(Node node, String key) {
+        switch (node.type) {
+            case MAP:
+                return true;
+            case RECORD: // all required fields must take the property
+                for (Field field : node.fields) {
+                    if (field.defaultLeaves(false) == null && field.rank(key) == Integer.MAX_VALUE) {
+                        return false;
+                    }
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+    
+    /**
+     * Positions of the schema where json may have to be matched twice, to rule out an ambiguity;
+     * by record field path, with {@code []} for array items and {@code {}} for map values.
+     */
+    List<String> ambiguities() {
+        List<String> ambiguities = new ArrayList<>();
+        addAmbiguities(root, "$", ambiguities, Collections.newSetFromMap(new IdentityHashMap<>()));
+        return ambiguities;
+    }
+    
+    private static void addAmbiguities(Node node, String path, List<String> ambiguities, Set<Node> visited) {
+        if (node.type != Schema.Type.UNION) {
+            if (node.wrapAmbiguous) {
+                ambiguities.add(path + ": " + node.type + " for {\"" + node.name + "\":v}");
+            }
+            addInnerAmbiguities(node, path, ambiguities, visited);
+            return;
+        }
+        if (!node.ambiguousKeys.isEmpty()) {
+            ambiguities.add(path + ": " + Mismatch.describe(node) + " for {t:v} with t in " + new TreeSet<>(node.ambiguousKeys));
+        }
+        for (Node branch : node.branches) { // a branch itself is only matched as is
+            addInnerAmbiguities(branch, path, ambiguities, visited);
+        }
+    }
+    
+    private static void addInnerAmbiguities(Node node, String path, List<String> ambiguities, Set<Node> visited) {
+        if (!visited.add(node)) {
+            return;
+        }
+        if (node.fields != null) {
+            for (Field field : node.fields) {
+                addAmbiguities(field.node, field.path, ambiguities, visited);
+            }
+        }
+        if (node.items != null) {
+            addAmbiguities(node.items, path + (node.type == Schema.Type.ARRAY ? "[]" : "{}"), ambiguities, visited);
+        }
+    }
+    
+    int fieldCount() {
+        return fieldsById.size();
+    }
+    
+    Field field(int id) {
+        return fieldsById.get(id);
+    }
+    
+    int unionCount() {
+        return unionsById.size();
+    }
+    
+    Node union(int id) {
+        return unionsById.get(id);
+    }
+    
+    /**
+     * Fields which a {@code GenericDatumReader(<this plan's schema>, readersSchema)} skips, by {@link Field#id}.
+     * A field is skipped if no record it may resolve to in {@code readersSchema} has it by name or alias,
+     * unless its record is under a union.
+     */
+    boolean[] skippedFields(Schema readersSchema) {
+        int fieldCount = fieldCount();
+        boolean[] reached = new boolean[fieldCount];
+        boolean[] needed = new boolean[fieldCount];
+        project(root, readersSchema, reached, needed, new HashSet<>());
+        boolean[] skipped = new boolean[fieldCount];
+        for (int i = 0; i < fieldCount; i++) {
+            skipped[i] = reached[i] && !needed[i];
+        }
+        return skipped;
+    }
+    
+    private static void project(Node writer, Schema reader, boolean[] reached, boolean[] needed, Set<List<Object>> seen) {
+        if (!seen.add(List.of(writer, reader))) {
+            return;
+        }
+        if (writer.type == Schema.Type.UNION) {
+            for (Node branch : writer.branches) {
+                project(branch, reader, reached, needed, seen);
+            }
+            return;
+        }
+        if (reader.getType() == Schema.Type.UNION) {
+            for (Schema branch : reader.getTypes()) {
+                project(writer, branch, reached, needed, seen);
+            }
+            return;
+        }
+        if (writer.type != reader.getType()) {
+            return;
+        }
+        switch (writer.type) {
+            case RECORD:
+                for (Field field : writer.fields) {
+                    reached[field.id] = !writer.inTrial;
+                    Schema.Field readerField = reader.getField(field.name);
+                    if (readerField == null) {
+                        for (Schema.Field f : reader.getFields()) {
+                            if (f.aliases().contains(field.name)) {
+                                readerField = f;
+                                break;
+                            }
+                        }
+                    }
+                    if (readerField != null) {
+                        needed[field.id] = true;
+                        project(field.node, readerField.schema(), reached, needed, seen);
+                    }
+                }
+                break;
+            case ARRAY:
+                project(writer.items, reader.getElementType(), reached, needed, seen);
+                break;
+            case MAP:
+                project(writer.items, reader.getValueType(), reached, needed, seen);
+                break;
+            default:
+                break;
+        }
+    }
+    
+    /**
+     * Appends leaves of some valid value of {@code node}, for a datum reader to skip.
+     * @return false for a type with no finite value, e.g. a record which always contains itself.
+     */
+    private static boolean addPlaceholder(Node node, LeafTape tape, Set<Node> visiting) {
+        switch (node.type) {
+            case RECORD:
+                if (!visiting.add(node)) {
+                    return false;
+                }
+                for (Field field : node.fields) {
+                    if (!addPlaceholder(field.node, tape, visiting)) {
+                        visiting.remove(node);
+                        return false;
+                    }
+                }
+                visiting.remove(node);
+                return true;
+            case UNION:
+                for (int index = 0; index < node.branches.length; index++) {
+                    int mark = tape.addLong(LeafTape.INT, index);
+                    if (addPlaceholder(node.branches[index], tape, visiting)) {
+                        return true;
+                    }
+                    tape.truncate(mark);
+                }
+                return false;
+            case ARRAY:
+            case MAP: // empty
+                int skip = tape.addLong(LeafTape.SKIP, 0);
+                tape.setLong(skip, tape.addLong(LeafTape.COUNT, 0) - skip);
+                return true;
+            case ENUM:
+                tape.addLong(LeafTape.INT, 0);
+                return true;
+            case FIXED:
+                tape.addBytes(new byte[node.fixedSize]);
+                return true;
+            case BYTES:
+                tape.addBytes(new byte[0]);
+                return true;
+            case STRING:
+                tape.addString("");
+                return true;
+            case BOOLEAN:
+                tape.addLong(LeafTape.BOOLEAN, 0);
+                return true;
+            case NULL:
+                return true;
+            default: // numbers
+                tape.addLong(LeafTape.NUMBER, 0);
+                return true;
+        }
+    }
+    
+    private Node compile(Schema schema, Map<Schema, Node> nodes) {
+        Node node = nodes.get(schema);
+        if (node != null) {
+            return node;
+        }
+        node = new Node(schema);
+        nodes.put(schema, node);
+        switch (schema.getType()) {
+            case RECORD:
+                List<Schema.Field> fields = schema.getFields();
+                node.fields = new Field[fields.size()];
+                node.fieldsByKey = new HashMap<>();
+                for (int i = 0; i < fields.size(); i++) {
+                    Schema.Field f = fields.get(i);
+                    node.fields[i] = new Field(this, schema, f, compile(f.schema(), nodes), fieldsById.size());
+                    fieldsById.add(node.fields[i]);
+                    node.addFieldKey(f.name(), i);
+                    for (String alias : node.fields[i].aliases) {
+                        node.addFieldKey(alias, i);
+                    }
+                }
+                break;
+            case ARRAY:
+                node.items = compile(schema.getElementType(), nodes);
+                break;
+            case MAP:
+                node.items = compile(schema.getValueType(), nodes);
+                break;
+            case ENUM:
+                node.ordinals = new HashMap<>();
+                node.symbols = schema.getEnumSymbols().toArray(new String[0]);
+                for (String symbol : schema.getEnumSymbols()) {
+                    node.ordinals.put(symbol, schema.getEnumOrdinal(symbol));
+                }
+                String enumDefault = schema.getEnumDefault();
+                node.enumDefault = enumDefault == null ? -1 : schema.getEnumOrdinal(enumDefault);
+                break;
+            case FIXED:
+                node.fixedSize = schema.getFixedSize();
+                break;
+            case UNION:
+                List<Schema> types = schema.getTypes();
+                node.unionId = unionsById.size();
+                unionsById.add(node);
+                node.branches = new Node[types.size()];
+                node.indexNamed = new HashMap<>();
+                for (int i = 0; i < types.size(); i++) {
+                    node.branches[i] = compile(types.get(i), nodes);
+                    node.indexNamed.put(types.get(i).getFullName(), i);
+                }
+                // {"long":0} should match "float" in schema ["int", "float","double"]
+                node.promotions = new HashMap<>();
+                for (String type : List.of("int", "long", "float", "double", "string", "bytes")) {
+                    node.addPromotion(type);
+                }
+                for (Node branch : node.branches) {
+                    node.addPromotion(branch.name);
+                }
+                break;
+            default:
+                break;
+        }
+        return node;
+    }
+    
+    /**
+     * A compiled schema.
+     */
+    static final class Node {
+        final Schema schema;
+        final Schema.Type type;
+        final String name;
+        final int numberRank;
+        final boolean stringLike;
+        final boolean javaString; // STRING, MAP keys: a datum reader makes a String rather than a Utf8
+        
+        // RECORD
+        Field[] fields;
+        Map<String, int[]> fieldsByKey; // name or alias -> positions of the fields taking it
+        // ARRAY, MAP
+        Node items;
+        // ENUM
+        Map<String, Integer> ordinals;
+        String[] symbols;
+        int enumDefault;
+        // FIXED
+        int fixedSize = -1;
+        // UNION
+        Node[] branches;
+        int unionId; // unique in the plan
+        Map<String, Integer> indexNamed;
+        Map<String, int[]> promotions;
+        // under a union: whether a value matches may decide the interpretation, so it is never projected out
+        boolean inTrial;
+        ScalarMatcher scalarMatcher;
+        int[][] kindBranches; // UNION: by JsonNodeType, the branches that may take a json value of it
+        // see analyzeAmbiguity()
+        boolean wrapAmbiguous = true;
+        Set<String> ambiguousKeys; // UNION: the t of {t:v} that rule#12 may take too; null for all
+        boolean[] bareBranches; // UNION: see bareBranches(), for AutoJsonEncoder
+        
+        Node(Schema schema) {
+            this.schema = schema;
+            this.type = schema.getType();
+            this.name = schema.getName();
+            this.numberRank = NUMBER_RANKS.getOrDefault(name, -1);
+            this.stringLike = type == Schema.Type.STRING || type == Schema.Type.BYTES;
+            this.javaString = GenericData.StringType.String.name().equals(schema.getProp(GenericData.STRING_PROP));
+        }
+        
+        /**
+         * False if this schema can't take {@code node} whatever the rules, e.g. a record whose required field is missing:
+         * a cheap test on the tree, which only looks into the values of required fields,
+         * down to MAY_TAKE_LEVELS records deep.
+         */
+        boolean mayTake(JsonNode node, boolean breakAmbiguity) {
+            return mayTake(node, breakAmbiguity, MAY_TAKE_LEVELS);
+        }
+        
+        private boolean mayTake(JsonNode node, boolean breakAmbiguity, int levels) {
+            switch (node.getNodeType()) {
+                case OBJECT:
+                    if (node.size() == 1 && mayBeWrapped(node.fieldNames().next())) { // may be {t:v}
+                        return true;
+                    }
+                    switch (type) {
+                        case RECORD:
+                            return hasRequiredFields(node, breakAmbiguity, levels);
+                        case MAP:
+                            return true;
+                        case UNION:
+                            return anyBranchMayTake(node, breakAmbiguity, levels);
+                        default:
+                            return false;
+                    }
+                case ARRAY:
+                    return type == Schema.Type.ARRAY || type == Schema.Type.UNION && anyBranchMayTake(node, breakAmbiguity, levels);
+                case STRING:
+                    switch (type) {
+                        case STRING:
+                        case BYTES:
+                            return true;
+                        case ENUM:
+                            return enumDefault != -1 || ordinals.containsKey(node.textValue());
+                        case FIXED:
+                            return LeafTape.latin1Length(node.textValue()) == fixedSize;
+                        case UNION:
+                            return anyBranchMayTake(node, breakAmbiguity, levels);
+                        default:
+                            return false;
+                    }
+                case NUMBER:
+                    return numberRank != -1 || type == Schema.Type.UNION && anyBranchMayTake(node, breakAmbiguity, levels);
+                case BOOLEAN:
+                    return type == Schema.Type.BOOLEAN || type == Schema.Type.UNION && anyBranchMayTake(node, breakAmbiguity, levels);
+                case NULL:
+                    return type == Schema.Type.NULL || type == Schema.Type.UNION && anyBranchMayTake(node, breakAmbiguity, levels);
+                default:
+                    return false;
+            }
+        }
+        
+        private boolean anyBranchMayTake(JsonNode node, boolean breakAmbiguity, int levels) {
+            for (Node branch : branches) {
+                if (branch.mayTake(node, breakAmbiguity, levels)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        private boolean hasRequiredFields(JsonNode node, boolean breakAmbiguity, int levels) {
+            if (levels == 0) { // deep enough for a filter
+                return true;
+            }
+            for (Field field : fields) {
+                if (field.defaultLeaves(breakAmbiguity) != null) {
+                    continue;
+                }
+                JsonNode value = node.get(field.name);
+                for (int i = 0; value == null && i < field.aliases.length; i++) {
+                    value = node.get(field.aliases[i]);
+                }
+                if (value == null || !field.node.mayTake(value, breakAmbiguity, levels - 1)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        /**
+         * ENUM: the ordinal of the symbol {@code chars[offset, offset + length)}, or -1;
+         * a few symbols are compared in place, without making a string.
+         */
+        int ordinal(char[] chars, int offset, int length) {
+            if (symbols.length > 16) {
+                return ordinals.getOrDefault(new String(chars, offset, length), -1);
+            }
+            for (int i = 0; i < symbols.length; i++) {
+                if (symbols[i].length() == length && equals(symbols[i], chars, offset)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        
+        private static boolean equals(String symbol, char[] chars, int offset) {
+            for (int i = 0; i < symbol.length(); i++) {
+                if (symbol.charAt(i) != chars[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        /**
+         * Whether {t:v} with {@code t == type} may be read as this (non-union) schema.
+         */
+        boolean typeMatch(String type) {
+            Integer rank = NUMBER_RANKS.get(type);
+            if (rank != null && numberRank != -1) {
+                return rank <= numberRank;
+            }
+            if (stringLike && (type.equals("string") || type.equals("bytes"))) {
+                return true;
+            }
+            return type.equals(name);
+        }
+        
+        /**
+         * Whether a json object with first property {@code key} could be {t:v} for rule#10/#11.
+         */
+        boolean mayBeWrapped(String key) {
+            if (type != Schema.Type.UNION) {
+                return typeMatch(key);
+            }
+            return indexNamed.containsKey(key) || promotions(key).length > 0;
+        }
+        
+        /**
+         * Whether {@link #mayTake(JsonNode, boolean)} may be true for some json value of {@code kind}, {t:v} aside.
+         */
+        boolean mayTakeKind(JsonNodeType kind) {
+            if (type == Schema.Type.UNION) {
+                for (Node branch : branches) {
+                    if (branch.mayTakeKind(kind)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            switch (kind) {
+                case OBJECT:
+                    return type == Schema.Type.RECORD || type == Schema.Type.MAP;
+                case ARRAY:
+                    return type == Schema.Type.ARRAY;
+                case STRING:
+                    return stringLike || type == Schema.Type.ENUM || type == Schema.Type.FIXED;
+                case NUMBER:
+                    return numberRank != -1;
+                case BOOLEAN:
+                    return type == Schema.Type.BOOLEAN;
+                case NULL:
+                    return type == Schema.Type.NULL;
+                default:
+                    return false;
+            }
+        }
+        
+        /**
+         * Every t for which {@link #mayBeWrapped(String)} is true.
+         */
+        Set<String> wrapKeys() {
+            Set<String> keys = new HashSet<>(List.of("int", "long", "float", "double", "string", "bytes", name));
+            if (type == Schema.Type.UNION) {
+                keys.addAll(indexNamed.keySet());
+                for (Node branch : branches) {
+                    keys.add(branch.name);
+                }
+            }
+            keys.removeIf(key -> !mayBeWrapped(key));
+            return keys;
+        }
+        
+        /**
+         * Whether rule#12 may take {t:v} too, once rule#10/#11 has.
+         */
+        boolean wrapAmbiguous(String type) {
+            return ambiguousKeys == null || ambiguousKeys.contains(type);
+        }
+        
+        /**
+         * Union branches which {t:v} may be read as, when {@code t} isn't a name in the union.
+         */
+        int[] promotions(String type) {
+            return promotions.getOrDefault(type, NO_INDEX);
+        }
+        
+        private void addFieldKey(String key, int position) {
+            int[] positions = fieldsByKey.get(key);
+            if (positions == null) {
+                fieldsByKey.put(key, new int[] { position });
+            } else if (positions[positions.length - 1] != position) {
+                positions = Arrays.copyOf(positions, positions.length + 1);
+                positions[positions.length - 1] = position;
+                fieldsByKey.put(key, positions);
+            }
+        }
+        
+        private void addPromotion(String type) {
+            if (indexNamed.containsKey(type) || promotions.containsKey(type)) {
+                return;
+            }
+            int count = 0;
+            int[] indexes = new int[branches.length];
+            for (int index = 0; index < branches.length; index++) {
+                if (branches[index].typeMatch(type)) {
+                    indexes[count++] = index;
+                }
+            }
+            promotions.put(type, Arrays.copyOf(indexes, count));
+        }
+    }
+    
+    /**
+     * A compiled record field.
+     */
+    static final class Field {
+        final String name; // interned, as the parser's property names are
+        final String[] aliases;
+        final Node node;
+        final JsonNode defaultValue;
+        final int id; // unique in the plan
+        final String path; // record's full name and field name
+        
+        // the rule applied on the default value, per breakAmbiguity mode
+        private final LeafTape[] defaultLeaves = new LeafTape[2];
+        private final Mismatch[] defaultMismatches = new Mismatch[2];
+        private DecodingPlan plan; // until the default is expanded
+        // leaves of some value, stand-in for a value that is only skipped; null if the type has no finite value
+        LeafTape placeholder;
+        int[] positions; // the record's fieldsByKey for the name
+        
+        Field(DecodingPlan plan, Schema record, Schema.Field field, Node node, int id) {
+            this.plan = plan;
+            this.id = id;
+            this.path = record.getFullName() + "." + field.name();
+            this.name = field.name().intern();
+            this.aliases = field.aliases().toArray(new String[0]);
+            this.node = node;
+            this.defaultValue = Accessor.defaultValue(field);
+        }
+        
+        /**
+         * Preference of json property {@code key} for this field: the name first, then aliases in order.
+         */
+        int rank(String key) {
+            if (key.equals(name)) {
+                return 0;
+            }
+            for (int i = 0; i < aliases.length; i++) {
+                if (key.equals(aliases[i])) {
+                    return i + 1;
+                }
+            }
+            return Integer.MAX_VALUE;
+        }
+        
+        /**
+         * Matches the default value, once: the defaults of the fields it leaves out are expanded first, on demand.
+         */
+        private void expandDefault() {
+            DecodingPlan plan = this.plan;
+            if (plan == null) {
+                return;
+            }
+            this.plan = null;
+            if (defaultValue == null) {
+                defaultMismatches[0] = defaultMismatches[1] = Mismatch.message("missing required field " + name);
+                return;
+            }
+            // what a default that leaves out this very field gets, as it can only nest forever
+            defaultMismatches[0] = defaultMismatches[1] = Mismatch.message("recursive default of field " + name);
+            for (int mode = 0; mode < 2; mode++) {
+                AutoJsonDecoder expander = new AutoJsonDecoder(plan, List.of()).breakAmbiguity(mode == 1);
+                if (expander.dfs(node, defaultValue)) {
+                    defaultLeaves[mode] = expander.tape.copy(0, expander.tape.size());
+                    defaultMismatches[mode] = null;
+                } else {
+                    defaultMismatches[mode] = Mismatch.message("invalid default of field " + name + ": " + expander.mismatch.message());
+                }
+            }
+        }
+        
+        /**
+         * Leaves of the default value, used when the field is absent in json;
+         * null if there is no usable default, see {@link #defaultMismatch(boolean)}.
+         */
+        LeafTape defaultLeaves(boolean breakAmbiguity) {
+            expandDefault();
+            return defaultLeaves[breakAmbiguity ? 1 : 0];
+        }
+        
+        Mismatch defaultMismatch(boolean breakAmbiguity) {
+            expandDefault();
+            return defaultMismatches[breakAmbiguity ? 1 : 0];
+        }
+    }
+    
+    private static final class Key {
+        final Schema schema;
+        
+        Key(Schema schema) {
+            this.schema = schema;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).schema == schema;
+        }
+        
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(schema);
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import org.apache.avro.io.Encoder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The leaf values of a datum in document order, as {@link AutoJsonDecoder} reads them.
+ * <p>
+ *     A tag per leaf, with the value in one of the parallel columns;
+ *     strings and bytes are encoded into a byte arena, to be copied into the reader's buffers.
+ *     Appended once by the matcher, truncated back when a trial fails,
+ *     then read through a cursor; reused across datums.
+ * </p>
+ */
+final class LeafTape {
+    // tags, value column in parentheses
+    static final byte BOOLEAN = 1; // (longs) 0 or 1
+    static final byte INT = 2;     // (longs) enum ordinal, union index
+    static final byte COUNT = 3;   // (longs) array/map block count
+    static final byte SKIP = 4;    // (longs) number of leaves after this one, to the end of the array/map
+    static final byte NUMBER = 5;  // (longs) integral json number
+    static final byte DOUBLE = 6;  // (doubles) floating point json number
+    static final byte NODE = 7;    // (objects) any other json number, as JsonNode
+    static final byte STRING = 8;  // (longs) offset << 32 | length of UTF-8 in the arena; (objects) its String, if canonical
+    static final byte BYTES = 9;   // (longs) offset << 32 | length in the arena
+    
+    private byte[] tags = new byte[64];
+    private long[] longs = new long[64];
+    private double[] doubles = new double[64];
+    private Object[] objects = new Object[64];
+    private int size;
+    private int cursor;
+    private byte[] arena = new byte[256];
+    private int arenaSize; // not reclaimed by truncate()
+    private char[] scratch = new char[64];
+    
+    int size() {
+        return size;
+    }
+    
+    boolean hasNext() {
+        return cursor < size;
+    }
+    
+    void clear() {
+        truncate(0);
+        cursor = 0;
+        arenaSize = 0;
+    }
+    
+    /**
+     * Drops the leaves from {@code size} on, e.g. those of a failed trial.
+     */
+    void truncate(int size) {
+        Arrays.fill(objects, size, this.size, null);
+        this.size = size;
+    }
+    
+    int addLong(byte tag, long value) {
+        ensureCapacity(1);
+        tags[size] = tag;
+        longs[size] = value;
+        return size++;
+    }
+    
+    void addDouble(double value) {
+        ensureCapacity(1);
+        tags[size] = DOUBLE;
+        doubles[size] = value;
+        size++;
+    }
+    
+    int addObject(byte tag, Object value) {
+        ensureCapacity(1);
+        tags[size] = tag;
+        objects[size] = value;
+        return size++;
+    }
+    
+    void setLong(int position, long value) {
+        longs[position] = value;
+    }
+    
+    /**
+     * Appends a STRING leaf, encoded as UTF-8 like {@link String#getBytes} does.
+     */
+    int addString(String text) {
+        return addString(chars(text), 0, text.length());
+    }
+    
+    int addString(char[] chars, int from, int length) {
+        int offset = reserve(3 * length);
+        int end = offset;
+        for (int i = from; i < from + length; i++) {
+            char c = chars[i];
+            if (c < 0x80) {
+                arena[end++] = (byte) c;
+            } else if (c < 0x800) {
+                arena[end++] = (byte) (0xC0 | c >> 6);
+                arena[end++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < from + length && Character.isLowSurrogate(chars[i + 1])) {
+                int cp = Character.toCodePoint(c, chars[++i]);
+                arena[end++] = (byte) (0xF0 | cp >> 18);
+                arena[end++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                arena[end++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                arena[end++] = (byte) (0x80 | cp & 0x3F);
+            } else if (Character.isSurrogate(c)) { // unpaired
+                arena[end++] = '?';
+            } else {
+                arena[end++] = (byte) (0xE0 | c >> 12);
+                arena[end++] = (byte) (0x80 | c >> 6 & 0x3F);
+                arena[end++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        arenaSize = end;
+        return addLong(STRING, (long) offset << 32 | (end - offset));
+    }
+    
+    /**
+     * Keeps the canonical {@code text} of the STRING leaf at {@code position}, to be read as is by {@link #nextString()}.
+     */
+    void keep(int position, String text) {
+        objects[position] = text;
+    }
+    
+    /**
+     * Appends a BYTES leaf of the chars encoded as ISO_8859_1, like {@link String#getBytes} does:
+     * a char above 0xFF, or a surrogate pair, is a single '?'.
+     */
+    int addLatin1(String text) {
+        return addLatin1(chars(text), 0, text.length());
+    }
+    
+    int addLatin1(char[] chars, int from, int length) {
+        int offset = reserve(length);
+        int end = offset;
+        for (int i = from; i < from + length; i++) {
+            char c = chars[i];
+            if (c > 0xFF && isSurrogatePair(chars, i, from + length)) {
+                i++;
+            }
+            arena[end++] = c <= 0xFF ? (byte) c : (byte) '?';
+        }
+        arenaSize = end;
+        return addLong(BYTES, (long) offset << 32 | (end - offset));
+    }
+    
+    /**
+     * The number of bytes {@link #addLatin1(char[], int, int)} appends for the chars.
+     */
+    static int latin1Length(char[] chars, int from, int length) {
+        int bytes = length;
+        for (int i = from; i < from + length; i++) {
+            if (isSurrogatePair(chars, i, from + length)) {
+                bytes--;
+                i++;
+            }
+        }
+        return bytes;
+    }
+    
+    static int latin1Length(String text) {
+        int bytes = text.length();
+        for (int i = 0; i < text.length() - 1; i++) {
+            if (Character.isHighSurrogate(text.charAt(i)) && Character.isLowSurrogate(text.charAt(i + 1))) {
+                bytes--;
+                i++;
+            }
+        }
+        return bytes;
+    }
+    
+    private static boolean isSurrogatePair(char[] chars, int i, int end) {
+        return Character.isHighSurrogate(chars[i]) && i + 1 < end && Character.isLowSurrogate(chars[i + 1]);
+    }
+    
+    int addBytes(byte[] bytes) {
+        int offset = reserve(bytes.length);
+        System.arraycopy(bytes, 0, arena, offset, bytes.length);
+        arenaSize = offset + bytes.length;
+        return addLong(BYTES, (long) offset << 32 | bytes.length);
+    }
+    
+    /**
+     * Appends {@code src[from, to)}; {@code src} may be this tape.
+     */
+    void append(LeafTape src, int from, int to) {
+        int length = to - from;
+        ensureCapacity(length);
+        System.arraycopy(src.tags, from, tags, size, length);
+        System.arraycopy(src.longs, from, longs, size, length);
+        System.arraycopy(src.doubles, from, doubles, size, length);
+        System.arraycopy(src.objects, from, objects, size, length);
+        if (src != this) { // strings and bytes into this arena
+            for (int i = size; i < size + length; i++) {
+                if (tags[i] == STRING || tags[i] == BYTES) {
+                    int n = (int) longs[i];
+                    int offset = reserve(n);
+                    System.arraycopy(src.arena, (int) (longs[i] >>> 32), arena, offset, n);
+                    arenaSize = offset + n;
+                    longs[i] = (long) offset << 32 | n;
+                }
+            }
+        }
+        size += length;
+    }
+    
+    /**
+     * Moves the leaves from {@code from} on down to {@code to}, dropping those in between.
+     */
+    void moveDown(int from, int to) {
+        int length = size - from;
+        System.arraycopy(tags, from, tags, to, length);
+        System.arraycopy(longs, from, longs, to, length);
+        System.arraycopy(doubles, from, doubles, to, length);
+        System.arraycopy(objects, from, objects, to, length);
+        truncate(to + length);
+    }
+    
+    /**
+     * A compact copy of {@code [from, to)}.
+     */
+    LeafTape copy(int from, int to) {
+        LeafTape copy = new LeafTape();
+        copy.append(this, from, to);
+        return copy;
+    }
+    
+    byte peekTag() {
+        return tags[cursor];
+    }
+    
+    long nextLong() {
+        return longs[cursor++];
+    }
+    
+    double nextDouble() {
+        return doubles[cursor++];
+    }
+    
+    Object nextObject() {
+        Object value = objects[cursor];
+        objects[cursor++] = null; // handed to the caller
+        return value;
+    }
+    
+    /**
+     * The length of the next STRING/BYTES leaf, in bytes.
+     */
+    int peekLength() {
+        return (int) longs[cursor];
+    }
+    
+    /**
+     * Copies the next STRING/BYTES leaf to {@code bytes[start, start + peekLength())}.
+     */
+    void nextBytes(byte[] bytes, int start) {
+        long value = longs[cursor++];
+        System.arraycopy(arena, (int) (value >>> 32), bytes, start, (int) value);
+    }
+    
+    /**
+     * Writes the next STRING/BYTES leaf to {@code out}, as Avro bytes, which is also how strings are encoded.
+     */
+    void nextBytes(Encoder out) throws IOException {
+        long value = longs[cursor++];
+        out.writeBytes(arena, (int) (value >>> 32), (int) value);
+    }
+    
+    void nextFixed(Encoder out) throws IOException {
+        long value = longs[cursor++];
+        out.writeFixed(arena, (int) (value >>> 32), (int) value);
+    }
+    
+    String nextString() {
+        if (objects[cursor] != null) {
+            return (String) nextObject();
+        }
+        long value = longs[cursor++];
+        return new String(arena, (int) (value >>> 32), (int) value, StandardCharsets.UTF_8);
+    }
+    
+    void skip(long count) {
+        cursor += (int) count;
+    }
+    
+    private char[] chars(String text) {
+        if (scratch.length < text.length()) {
+            scratch = new char[Math.max(scratch.length * 2, text.length())];
+        }
+        text.getChars(0, text.length(), scratch, 0);
+        return scratch;
+    }
+    
+    /**
+     * Room for {@code extra} more bytes in the arena; returns the offset to write at.
+     */
+    private int reserve(int extra) {
+        if (arenaSize + extra > arena.length) {
+            arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaSize + extra));
+        }
+        return arenaSize;
+    }
+    
+    private void ensureCapacity(int extra) {
+        if (size + extra > tags.length) {
+            int capacity = Math.max(tags.length * 2, size + extra);
+            tags = Arrays.copyOf(tags, capacity);
+            longs = Arrays.copyOf(longs, capacity);
+            doubles = Arrays.copyOf(doubles, capacity);
+            objects = Arrays.copyOf(objects, capacity);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteBufferFeeder;
+import com.fasterxml.jackson.core.async.NonBlockingInputFeeder;
+import com.fasterxml.jackson.core.util.JsonParserDelegate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A file mapped in memory, parsed in place: the mapped pages are fed to Jackson's non-blocking
+ * {@link ByteBuffer} parser as they are, without a read syscall or a copy into the parser's buffer.
+ * <p>
+ *     A mapping is limited to 2GB, so the file is mapped as consecutive windows,
+ *     each cut at its last line end: a line is in a single window, unless it's longer than one.
+ *     The whole file is mapped up front; the pages are loaded as they are read.
+ * </p>
+ */
+final class MappedFile {
+    static final long WINDOW_SIZE = 1L << 30;
+    
+    private final ByteBuffer[] windows;
+    private int window; // the one chunks are cut from
+    
+    MappedFile(Path file) throws IOException {
+        this(file, WINDOW_SIZE);
+    }
+    
+    MappedFile(Path file, long windowSize) throws IOException {
+        List<ByteBuffer> windows = new ArrayList<>();
+        // a mapping stays valid after its channel is closed
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size; ) {
+                ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(windowSize, size - position));
+                if (position + window.limit() < size) {
+                    int end = lastLineEnd(window, 0, window.limit());
+                    window.limit(end != -1 ? end : window.limit()); // the rest of the line in the next window
+                }
+                windows.add(window);
+                position += window.limit();
+            }
+        }
+        this.windows = windows.toArray(new ByteBuffer[0]);
+    }
+    
+    /**
+     * A parser of the whole file, fed a window at a time.
+     */
+    JsonParser parser(JsonFactory factory) throws IOException {
+        return new WindowParser(factory.createNonBlockingByteBufferParser(), windows.clone());
+    }
+    
+    /**
+     * A parser of {@code bytes}, read in place.
+     */
+    static JsonParser parser(JsonFactory factory, ByteBuffer bytes) throws IOException {
+        return new WindowParser(factory.createNonBlockingByteBufferParser(), new ByteBuffer[] {bytes});
+    }
+    
+    /**
+     * The next lines of the file, at least {@code chunkSize} bytes up to a line end, or to the end of the file;
+     * a slice of the mapping, unless it's a line across windows, which is copied. Null at the end of the file.
+     */
+    ByteBuffer nextChunk(int chunkSize) {
+        while (window < windows.length && !windows[window].hasRemaining()) {
+            windows[window++] = null; // done, let it be unmapped
+        }
+        if (window == windows.length) {
+            return null;
+        }
+        ByteBuffer buffer = windows[window];
+        int start = buffer.position();
+        int end = nextLineEnd(buffer, (int) Math.min((long) start + chunkSize - 1, buffer.limit()));
+        if (end == -1) {
+            if (window < windows.length - 1 && buffer.get(buffer.limit() - 1) != '\n') {
+                return lineAcrossWindows();
+            }
+            end = buffer.limit();
+        }
+        buffer.position(end);
+        return buffer.slice(start, end - start);
+    }
+    
+    /**
+     * Copies the line that starts in the current window and ends in a later one.
+     */
+    private ByteBuffer lineAcrossWindows() {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (; window < windows.length; window++) {
+            ByteBuffer buffer = windows[window];
+            int end = nextLineEnd(buffer, buffer.position());
+            byte[] bytes = new byte[(end != -1 ? end : buffer.limit()) - buffer.position()];
+            buffer.get(bytes);
+            line.write(bytes, 0, bytes.length);
+            if (end != -1) {
+                break;
+            }
+            windows[window] = null;
+        }
+        return ByteBuffer.wrap(line.toByteArray());
+    }
+    
+    /**
+     * The position after the first line end in {@code buffer[from, limit)}, or -1.
+     */
+    private static int nextLineEnd(ByteBuffer buffer, int from) {
+        for (int i = from; i < buffer.limit(); i++) {
+            if (buffer.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * The position after the last line end in {@code buffer[from, to)}, or -1.
+     */
+    private static int lastLineEnd(ByteBuffer buffer, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (buffer.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * A non-blocking parser that reads like a blocking one: it is fed the next window whenever it runs out of input,
+     * so it never returns {@link JsonToken#NOT_AVAILABLE}.
+     */
+    private static final class WindowParser extends JsonParserDelegate {
+        private final ByteBufferFeeder feeder;
+        private final ByteBuffer[] windows;
+        private int next; // the window to feed next
+        
+        WindowParser(JsonParser parser, ByteBuffer[] windows) {
+            super(parser);
+            this.feeder = (ByteBufferFeeder) parser.getNonBlockingInputFeeder();
+            this.windows = windows;
+        }
+        
+        @Override
+        public JsonToken nextToken() throws IOException {
+            JsonToken token;
+            while ((token = delegate.nextToken()) == JsonToken.NOT_AVAILABLE) {
+                if (next < windows.length) {
+                    feeder.feedInput(windows[next]);
+                    windows[next++] = null; // the parser lets go of it once fed the next one
+                } else {
+                    feeder.endOfInput();
+                }
+            }
+            return token;
+        }
+        
+        // the others would call the delegate's nextToken()
+        
+        @Override
+        public JsonToken nextValue() throws IOException {
+            JsonToken token = nextToken();
+            return token == JsonToken.FIELD_NAME ? nextToken() : token;
+        }
+        
+        @Override
+        public JsonParser skipChildren() throws IOException {
+            JsonToken token = currentToken();
+            if (token == null || !token.isStructStart()) {
+                return this;
+            }
+            for (int open = 1; open > 0 && (token = nextToken()) != null; ) {
+                open += token.isStructStart() ? 1 : token.isStructEnd() ? -1 : 0;
+            }
+            return this;
+        }
+        
+        @Override
+        public boolean canParseAsync() {
+            return false;
+        }
+        
+        @Override
+        public NonBlockingInputFeeder getNonBlockingInputFeeder() {
+            return null;
+        }
+    }
+}
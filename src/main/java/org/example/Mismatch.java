@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import com.fasterxml.jackson.databind.node.JsonNodeType;
+import org.apache.avro.AvroTypeException;
+import org.apache.avro.Schema;
+import org.example.DecodingPlan.Node;
+
+/**
+ * Why a json value doesn't match a schema.
+ * <p>
+ *     Trials of rule#10-#12 fail routinely, so a mismatch is a plain immutable value:
+ *     no stack trace, and no message until the datum as a whole fails,
+ *     see {@link #exception()}.
+ * </p>
+ */
+final class Mismatch {
+    private static final int EXPECTED = 0;
+    private static final int AMBIGUITY = 1;
+    private static final int NO_SYMBOL = 2;
+    private static final int FIXED_SIZE = 3;
+    private static final int MESSAGE = 4;
+    
+    private final int kind;
+    private final Object expected;
+    private final Object actual;
+    private final Path path; // outermost first, e.g. $.parts.p[0]
+    
+    private Mismatch(int kind, Object expected, Object actual, Path path) {
+        this.kind = kind;
+        this.expected = expected;
+        this.actual = actual;
+        this.path = path;
+    }
+    
+    static Mismatch expected(Node schema, JsonNodeType actual) {
+        return new Mismatch(EXPECTED, schema, actual, null);
+    }
+    
+    static Mismatch ambiguity(Node schema, JsonNodeType actual) {
+        return new Mismatch(AMBIGUITY, schema, actual, null);
+    }
+    
+    static Mismatch noSymbol(String text) {
+        return new Mismatch(NO_SYMBOL, null, text, null);
+    }
+    
+    static Mismatch fixedSize(int expected, int actual) {
+        return new Mismatch(FIXED_SIZE, expected, actual, null);
+    }
+    
+    static Mismatch message(String message) {
+        return new Mismatch(MESSAGE, null, message, null);
+    }
+    
+    /**
+     * This mismatch, found under the record field / map key {@code name} or the array index {@code name}.
+     */
+    Mismatch at(Object name) {
+        return new Mismatch(kind, expected, actual, new Path(name, path));
+    }
+    
+    String message() {
+        String message;
+        switch (kind) {
+            case EXPECTED:
+                message = "Expected " + describe((Node) expected) + ". Got " + actual;
+                break;
+            case AMBIGUITY:
+                message = "Ambiguity: " + describe((Node) expected) + ": " + actual;
+                break;
+            case NO_SYMBOL:
+                message = "No match for " + actual;
+                break;
+            case FIXED_SIZE:
+                message = "Expected fixed length " + expected + ", but got " + actual;
+                break;
+            default:
+                message = (String) actual;
+                break;
+        }
+        if (path == null) {
+            return message;
+        }
+        StringBuilder sb = new StringBuilder(message).append(" at $");
+        path.appendTo(sb);
+        return sb.toString();
+    }
+    
+    AvroTypeException exception() {
+        return new AvroTypeException(message());
+    }
+    
+    @Override
+    public String toString() {
+        return message();
+    }
+    
+    static String describe(Node schema) {
+        if (schema.type != Schema.Type.UNION) {
+            return schema.type.toString();
+        }
+        StringBuilder sb = new StringBuilder("UNION [");
+        for (int i = 0; i < schema.branches.length; i++) {
+            sb.append(i == 0 ? "" : ", ").append(schema.branches[i].name);
+        }
+        return sb.append(']').toString();
+    }
+    
+    private static final class Path {
+        final Object name;
+        final Path inner;
+        
+        Path(Object name, Path inner) {
+            this.name = name;
+            this.inner = inner;
+        }
+        
+        void appendTo(StringBuilder sb) {
+            if (name instanceof Number) {
+                sb.append('[').append(name).append(']');
+            } else {
+                sb.append('.').append(name);
+            }
+            if (inner != null) {
+                inner.appendTo(sb);
+            }
+        }
+    }
+}
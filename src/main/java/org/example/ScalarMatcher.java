@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.example.DecodingPlan.Node;
+
+/**
+ * {@code decoder.dfs(schema, node)} for a scalar json node, specialized for one schema node at plan time.
+ * <p>
+ *     A scalar can't be {t:v}, so only one interpretation is left:
+ *     the schema itself, or for a union, the first branch that matches (rule#12).
+ *     The type switch is resolved once, and a union only tries the branches
+ *     that can take the json type at all, in order.
+ * </p>
+ * <p>
+ *     Objects and arrays stay on {@link TreeMatcher}'s frames, which take what the plan resolved ahead of time:
+ *     a value that can't be {t:v} goes straight to the record, map, array or union branches that may take it,
+ *     see {@link DecodingPlan.Node#kindBranches}. The single call site of {@link #match} sees every node's matcher,
+ *     so the JIT can't inline one there; what is saved is the per-value dispatch on the schema and the json type.
+ *     {@code AutoJsonDecoderBenchmark.autoJsonGeneric} measures it against {@code specialized(false)}.
+ * </p>
+ */
+@FunctionalInterface
+interface ScalarMatcher {
+    boolean match(AutoJsonDecoder decoder, JsonNode node);
+    
+    static ScalarMatcher of(Node schema) {
+        switch (schema.type) {
+            case INT:
+            case LONG:
+            case FLOAT:
+            case DOUBLE:
+                return (decoder, node) -> {
+                    if (!decoder.expect(schema, node, node.isNumber())) {
+                        return false;
+                    }
+                    decoder.addNumber(node);
+                    return true;
+                };
+            case STRING:
+                return (decoder, node) -> {
+                    if (!decoder.expect(schema, node, node.isTextual())) {
+                        return false;
+                    }
+                    decoder.addString(schema, node.textValue());
+                    return true;
+                };
+            case BOOLEAN:
+                return (decoder, node) -> {
+                    if (!decoder.expect(schema, node, node.isBoolean())) {
+                        return false;
+                    }
+                    decoder.tape.addLong(LeafTape.BOOLEAN, node.booleanValue() ? 1 : 0);
+                    return true;
+                };
+            case NULL:
+                return (decoder, node) -> decoder.expect(schema, node, node.isNull());
+            case ENUM:
+                return (decoder, node) -> decoder.dfsEnum(schema, node);
+            case FIXED:
+                return (decoder, node) -> decoder.dfsBytes(schema, node, schema.fixedSize);
+            case BYTES:
+                return (decoder, node) -> decoder.dfsBytes(schema, node, -1);
+            case UNION:
+                return union(schema);
+            default: // a record, array or map never takes a scalar
+                return (decoder, node) -> decoder.expect(schema, node, false);
+        }
+    }
+    
+    private static ScalarMatcher union(Node schema) {
+        int[][] candidates = schema.kindBranches;
+        return (decoder, node) -> {
+            for (int index : candidates[node.getNodeType().ordinal()]) {
+                decoder.count(DecodingMetrics.BRANCH_TRIALS);
+                int mark = decoder.tape.addLong(LeafTape.INT, index);
+                Node branch = schema.branches[index];
+                if (branch.scalarMatcher.match(decoder, node)) {
+                    return true;
+                }
+                decoder.count(DecodingMetrics.BRANCH_FAILURES);
+                decoder.tape.truncate(mark);
+            }
+            return decoder.fail(Mismatch.expected(schema, node.getNodeType()));
+        };
+    }
+}
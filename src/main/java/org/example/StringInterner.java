@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.util.Arrays;
+
+/**
+ * A bounded cache of canonical strings, for {@link AutoJsonDecoder#interning(StringInterner)}:
+ * a string value that repeats across datums comes back as the same {@link String} instance,
+ * looked up from the parser's chars before any string is created.
+ * <p>
+ *     Direct-mapped: a string has a single slot, and a new one evicts the old.
+ *     Each site (a record field) keeps its hit rate; once a site has had {@code sampleSize} lookups
+ *     with a hit rate below {@code minHitRate}, e.g. ids, its strings are no longer looked up.
+ *     Not thread-safe: an interner per decoder.
+ * </p>
+ */
+public final class StringInterner {
+    private final String[] slots;
+    private final int mask;
+    private final int sampleSize;
+    private final double minHitRate;
+    private long[] lookups = new long[16]; // by site
+    private long[] hits = new long[16];
+    
+    /**
+     * 4096 strings, given up on a field after 1024 lookups with less than 1 hit in 4.
+     */
+    public StringInterner() {
+        this(4096, 1024, 0.25);
+    }
+    
+    /**
+     * @param capacity The number of strings kept, rounded up to a power of two.
+     * @param sampleSize The lookups after which a field is given up on if its hit rate is too low.
+     * @param minHitRate The hit rate below which a field is given up on, from 0 (never) to 1.
+     */
+    public StringInterner(int capacity, int sampleSize, double minHitRate) {
+        if (capacity <= 0 || sampleSize <= 0) {
+            throw new IllegalArgumentException("Expected a positive capacity and sample size. Got " + capacity + ", " + sampleSize);
+        }
+        this.slots = new String[capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1];
+        this.mask = slots.length - 1;
+        this.sampleSize = sampleSize;
+        this.minHitRate = minHitRate;
+    }
+    
+    /**
+     * True if the strings of {@code site} are still worth looking up.
+     */
+    boolean wanted(int site) {
+        if (site >= lookups.length) {
+            lookups = Arrays.copyOf(lookups, Math.max(2 * lookups.length, site + 1));
+            hits = Arrays.copyOf(hits, lookups.length);
+        }
+        return lookups[site] < sampleSize || hits[site] >= minHitRate * lookups[site];
+    }
+    
+    /**
+     * The canonical string of {@code chars[offset, offset + length)}; {@link #wanted(int)} first.
+     * @return null for a string with surrogates, which the leaves don't keep as is.
+     */
+    String intern(char[] chars, int offset, int length, int site) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            if (Character.isSurrogate(chars[i])) {
+                return null;
+            }
+            hash = 31 * hash + chars[i];
+        }
+        int slot = spread(hash) & mask;
+        String cached = slots[slot];
+        lookups[site]++;
+        if (cached != null && cached.length() == length && cached.hashCode() == hash && contentEquals(cached, chars, offset)) {
+            hits[site]++;
+            return cached;
+        }
+        return slots[slot] = new String(chars, offset, length);
+    }
+    
+    /**
+     * Same as {@link #intern(char[], int, int, int)} for a string the parser has created already.
+     */
+    String intern(String text, int site) {
+        for (int i = 0; i < text.length(); i++) {
+            if (Character.isSurrogate(text.charAt(i))) {
+                return null;
+            }
+        }
+        int slot = spread(text.hashCode()) & mask;
+        String cached = slots[slot];
+        lookups[site]++;
+        if (text.equals(cached)) {
+            hits[site]++;
+            return cached;
+        }
+        return slots[slot] = text;
+    }
+    
+    /**
+     * The share of lookups that found their string, over all sites.
+     */
+    public double hitRate() {
+        long total = Arrays.stream(lookups).sum();
+        return total == 0 ? 0 : (double) Arrays.stream(hits).sum() / total;
+    }
+    
+    private static boolean contentEquals(String cached, char[] chars, int offset) {
+        for (int i = 0; i < cached.length(); i++) {
+            if (cached.charAt(i) != chars[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static int spread(int hash) {
+        return hash ^ hash >>> 16;
+    }
+}
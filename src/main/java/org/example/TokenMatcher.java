@@ -0,0 +1,712 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.BigIntegerNode;
+import com.fasterxml.jackson.databind.node.DecimalNode;
+import com.fasterxml.jackson.databind.node.JsonNodeType;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.avro.Schema;
+import org.example.DecodingPlan.Field;
+import org.example.DecodingPlan.Node;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Applies the rules of {@link AutoJsonDecoder} on json tokens, without building a {@link JsonNode} tree.
+ * <p>
+ *     Only a value that rule#10-#12 may have to examine more than once is buffered as a tree:
+ *     an object whose first property could be the {@code t} of {t:v},
+ *     or an object against a union with several record/map branches.
+ *     Everything else, including the properties a record doesn't have, is matched token by token.
+ *     Properties that no interpretation would look at are skipped without being parsed, buffered or not.
+ *     A value nested deeper than {@code MAX_RECURSION} is buffered too, and left to {@link TreeMatcher}.
+ * </p>
+ */
+final class TokenMatcher {
+    // how deep matching recurses on the thread's stack, in json objects/arrays
+    private static final int MAX_RECURSION = 64;
+    
+    final AutoJsonDecoder decoder;
+    JsonParser parser; // re-targeted by AutoJsonDecoder#configure
+    final ObjectMapper mapper;
+    private final LeafTape tape;
+    private final ObjectNode emptyObject;
+    // the root array/map being matched a block at a time, null if none
+    private Node blocks;
+    private int blockSize;
+    private JsonStreamContext blocksParent;
+    private long blockItems; // matched so far
+    private boolean atItem; // the parser is at the first token of the next item already
+    // per record/map being matched, outermost first: kept from a datum to the next
+    Scratch[] scratches = new Scratch[16];
+    private int scratchDepth; // the scratches in use
+    
+    TokenMatcher(AutoJsonDecoder decoder, JsonParser parser, ObjectMapper mapper) {
+        this.decoder = decoder;
+        this.parser = parser;
+        this.mapper = mapper;
+        this.tape = decoder.tape;
+        this.emptyObject = mapper.createObjectNode();
+    }
+    
+    /**
+     * Same as {@code decoder.dfs(schema, <value at the current token>)}.
+     * The parser is left at the last token of the value, even if matching fails, or past it if the value was read as a tree.
+     */
+    boolean match(Node schema) throws IOException {
+        if (parser.currentToken().isStructStart()) {
+            int level = parser.getParsingContext().getNestingDepth();
+            if (level > decoder.maxDepth) {
+                throw AutoJsonDecoder.tooDeep(decoder.maxDepth);
+            }
+            if (level > MAX_RECURSION) { // the rest on the tree matcher's stack
+                return decoder.dfs(schema, mapper.readTree(parser), level);
+            }
+        }
+        JsonStreamContext parent = parser.currentToken().isStructStart()
+            ? parser.getParsingContext().getParent()
+            : parser.getParsingContext();
+        boolean ok;
+        switch (parser.currentToken()) {
+            case START_OBJECT: // counted there, unless it's left to the tree matcher, which counts it
+                ok = matchObject(schema);
+                break;
+            case START_ARRAY:
+                decoder.count(DecodingMetrics.NODES);
+                ok = matchArray(schema);
+                break;
+            default: // a scalar is a single token
+                decoder.count(DecodingMetrics.NODES);
+                return matchScalar(schema);
+        }
+        return ok || skipTo(parent);
+    }
+    
+    /**
+     * Skips the rest of the value, up to {@code parent}.
+     */
+    private boolean skipTo(JsonStreamContext parent) throws IOException {
+        while (parser.getParsingContext() != parent && parser.nextToken() != null) {
+            // skip the rest of the value
+        }
+        return false;
+    }
+    
+    /**
+     * Same as {@link #match(Node)} for the root {@code schema}, but an array, or a map that can't be {t:v},
+     * only has its first {@code blockSize} items matched: the others are left to {@link #matchBlock()}.
+     * The tape then has SKIP -1 for the collection, and the first block: COUNT n, then the items.
+     */
+    boolean matchInBlocks(Node schema, int blockSize) throws IOException {
+        JsonToken token = parser.currentToken();
+        if (schema.type == Schema.Type.ARRAY ? token != JsonToken.START_ARRAY : token != JsonToken.START_OBJECT) {
+            return match(schema);
+        }
+        JsonStreamContext parent = parser.getParsingContext().getParent();
+        if (schema.type == Schema.Type.MAP) {
+            String key = parser.nextFieldName();
+            if (key != null && schema.mayBeWrapped(key)) { // rule#10/#11 has to see all of it
+                return matchObject(schema, key) || skipTo(parent);
+            }
+            atItem = true;
+        }
+        decoder.count(DecodingMetrics.NODES);
+        blocks = schema;
+        this.blockSize = blockSize;
+        blocksParent = parent;
+        blockItems = 0;
+        int skip = tape.addLong(LeafTape.SKIP, -1);
+        if (!matchBlock()) {
+            return false;
+        }
+        if (blocks == null) { // all in one block
+            tape.setLong(skip, tape.size() - 1 - skip);
+        }
+        return true;
+    }
+    
+    /**
+     * True if there are items left to {@link #matchBlock()}.
+     */
+    boolean inBlocks() {
+        return blocks != null;
+    }
+    
+    /**
+     * Matches the next block of the collection onto the tape: COUNT n, then the items;
+     * COUNT 0 once the collection ends.
+     * @return false if an item fails; the rest of the collection is then skipped.
+     */
+    boolean matchBlock() throws IOException {
+        Node items = blocks.items;
+        int count = tape.addLong(LeafTape.COUNT, 0);
+        int n = 0;
+        while (n < blockSize) {
+            if (!atItem) {
+                parser.nextToken();
+            }
+            atItem = false;
+            JsonToken token = parser.currentToken();
+            if (token == JsonToken.END_ARRAY || token == JsonToken.END_OBJECT) {
+                blocks = null;
+                break;
+            }
+            String key = null;
+            if (blocks.type == Schema.Type.MAP) {
+                key = parser.currentName();
+                decoder.addKey(blocks, key);
+                parser.nextToken();
+            }
+            if (!match(items)) {
+                decoder.fail(decoder.mismatch.at(key != null ? key : (Object) blockItems));
+                skipBlocks();
+                return false;
+            }
+            n++;
+            blockItems++;
+        }
+        if (n != 0) {
+            tape.setLong(count, n);
+            if (blocks == null) {
+                tape.addLong(LeafTape.COUNT, 0);
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Skips the items left to {@link #matchBlock()}, without matching them.
+     */
+    void skipBlocks() throws IOException {
+        dropBlocks();
+        skipTo(blocksParent);
+    }
+    
+    /**
+     * Forgets the items left to {@link #matchBlock()}, e.g. when the parser is re-targeted.
+     */
+    void dropBlocks() {
+        blocks = null;
+        atItem = false;
+    }
+    
+    private boolean matchScalar(Node schema) throws IOException {
+        if (schema.type != Schema.Type.UNION) {
+            return scalar(schema);
+        }
+        // rule#12; a scalar can't be {t:v}
+        for (int index : schema.kindBranches[nodeType().ordinal()]) {
+            decoder.count(DecodingMetrics.BRANCH_TRIALS);
+            int mark = tape.addLong(LeafTape.INT, index);
+            if (scalar(schema.branches[index])) {
+                return true;
+            }
+            decoder.count(DecodingMetrics.BRANCH_FAILURES);
+            tape.truncate(mark);
+        }
+        return decoder.fail(Mismatch.expected(schema, nodeType()));
+    }
+    
+    /**
+     * Same as {@code decoder.dfs(schema, <scalar at the current token>)} for a non-union {@code schema}.
+     */
+    private boolean scalar(Node schema) throws IOException {
+        JsonToken token = parser.currentToken();
+        switch (schema.type) {
+            case INT:
+            case LONG:
+            case FLOAT:
+            case DOUBLE:
+                if (!token.isNumeric()) {
+                    break;
+                }
+                switch (parser.getNumberType()) {
+                    case INT:
+                    case LONG:
+                        tape.addLong(LeafTape.NUMBER, parser.getLongValue());
+                        break;
+                    case BIG_INTEGER:
+                        tape.addObject(LeafTape.NODE, BigIntegerNode.valueOf(parser.getBigIntegerValue()));
+                        break;
+                    case BIG_DECIMAL:
+                        tape.addObject(LeafTape.NODE, DecimalNode.valueOf(parser.getDecimalValue()));
+                        break;
+                    default:
+                        tape.addDouble(parser.getDoubleValue());
+                        break;
+                }
+                return true;
+            case STRING:
+                if (token != JsonToken.VALUE_STRING) {
+                    break;
+                }
+                int leaf = tape.addString(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+                StringInterner interner = decoder.interner;
+                if (interner != null && schema.javaString && interner.wanted(decoder.currentField)) {
+                    String canonical = interner.intern(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength(), decoder.currentField);
+                    if (canonical != null) {
+                        tape.keep(leaf, canonical);
+                    }
+                }
+                return true;
+            case BYTES:
+            case FIXED:
+                if (token != JsonToken.VALUE_STRING) {
+                    break;
+                }
+                int length = parser.getTextLength(); // a byte per char, or per surrogate pair
+                if (schema.fixedSize != -1) {
+                    int bytes = LeafTape.latin1Length(parser.getTextCharacters(), parser.getTextOffset(), length);
+                    if (bytes != schema.fixedSize) {
+                        return decoder.fail(Mismatch.fixedSize(schema.fixedSize, bytes));
+                    }
+                }
+                tape.addLatin1(parser.getTextCharacters(), parser.getTextOffset(), length);
+                return true;
+            case ENUM:
+                if (token != JsonToken.VALUE_STRING) {
+                    break;
+                }
+                int index = schema.ordinal(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+                if (index == -1) {
+                    if (schema.enumDefault == -1) {
+                        return decoder.fail(Mismatch.noSymbol(parser.getText()));
+                    }
+                    index = schema.enumDefault;
+                }
+                tape.addLong(LeafTape.INT, index);
+                return true;
+            case BOOLEAN:
+                if (!token.isBoolean()) {
+                    break;
+                }
+                tape.addLong(LeafTape.BOOLEAN, token == JsonToken.VALUE_TRUE ? 1 : 0);
+                return true;
+            case NULL:
+                if (token != JsonToken.VALUE_NULL) {
+                    break;
+                }
+                return true;
+            default:
+                break;
+        }
+        return decoder.fail(Mismatch.expected(schema, nodeType()));
+    }
+    
+    private JsonNodeType nodeType() {
+        switch (parser.currentToken()) {
+            case VALUE_STRING:
+                return JsonNodeType.STRING;
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return JsonNodeType.NUMBER;
+            case VALUE_TRUE:
+            case VALUE_FALSE:
+                return JsonNodeType.BOOLEAN;
+            case VALUE_NULL:
+                return JsonNodeType.NULL;
+            default:
+                return JsonNodeType.MISSING;
+        }
+    }
+    
+    private boolean matchArray(Node schema) throws IOException {
+        // only an array schema can take a json array; no {t:v}, and a union has at most one array branch
+        int[] candidates = schema.type == Schema.Type.UNION ? schema.kindBranches[JsonNodeType.ARRAY.ordinal()] : null;
+        int index = candidates != null && candidates.length != 0 ? candidates[0] : -1;
+        Node array = index == -1 ? schema : schema.branches[index];
+        if (array.type != Schema.Type.ARRAY) {
+            return decoder.fail(Mismatch.expected(schema, JsonNodeType.ARRAY));
+        }
+        if (index != -1) { // rule#12, the one branch that may take it
+            decoder.count(DecodingMetrics.BRANCH_TRIALS);
+            tape.addLong(LeafTape.INT, index);
+        }
+        int skip = tape.addLong(LeafTape.SKIP, 0);
+        int count = tape.addLong(LeafTape.COUNT, 0); // also the end, if empty
+        int n = 0;
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (!match(array.items)) {
+                if (index != -1) { // the union fails, as in the tree matcher
+                    decoder.count(DecodingMetrics.BRANCH_FAILURES);
+                    return decoder.fail(Mismatch.expected(schema, JsonNodeType.ARRAY));
+                }
+                return decoder.fail(decoder.mismatch.at(n));
+            }
+            n++;
+        }
+        if (n != 0) {
+            tape.setLong(count, n);
+            count = tape.addLong(LeafTape.COUNT, 0);
+        }
+        tape.setLong(skip, count - skip);
+        return true;
+    }
+    
+    private boolean matchObject(Node schema) throws IOException {
+        return matchObject(schema, parser.nextFieldName());
+    }
+    
+    private boolean matchObject(Node schema, String key) throws IOException {
+        if (key == null) { // {}, the parser is past it
+            return decoder.dfs(schema, emptyObject, parser.getParsingContext().getNestingDepth() + 1);
+        }
+        int level = parser.getParsingContext().getNestingDepth();
+        if (schema.mayBeWrapped(key)) { // rule#10/#11 has to see if it's a single property
+            return decoder.dfs(schema, bufferObject(schema, key), level);
+        }
+        int index = -1;
+        Node object = schema;
+        if (schema.type == Schema.Type.UNION) { // rule#12
+            int[] candidates = schema.kindBranches[JsonNodeType.OBJECT.ordinal()];
+            if (candidates.length > 1) { // first match of several
+                return decoder.dfs(schema, bufferObject(schema, key), level);
+            }
+            index = candidates.length != 0 ? candidates[0] : -1;
+        }
+        decoder.count(DecodingMetrics.NODES);
+        if (index != -1) { // the one branch that may take it
+            decoder.count(DecodingMetrics.BRANCH_TRIALS);
+            object = schema.branches[index];
+            tape.addLong(LeafTape.INT, index);
+        }
+        boolean ok;
+        switch (object.type) {
+            case RECORD:
+                ok = matchRecord(object, key);
+                break;
+            case MAP:
+                ok = matchMap(object, key);
+                break;
+            default:
+                return decoder.fail(Mismatch.expected(schema, JsonNodeType.OBJECT));
+        }
+        if (!ok && index != -1) { // the union fails, as in the tree matcher
+            decoder.count(DecodingMetrics.BRANCH_FAILURES);
+            return decoder.fail(Mismatch.expected(schema, JsonNodeType.OBJECT));
+        }
+        return ok;
+    }
+    
+    private boolean matchRecord(Node schema, String key) throws IOException {
+        // properties arrive in document order; each value is matched onto the tape as it comes,
+        // then the segments are put in field order
+        Field[] fields = schema.fields;
+        int start = tape.size();
+        Scratch scratch = enter(fields.length);
+        try {
+            int[] starts = scratch.starts; // the scratch of the nested values is another one
+            int[] ends = scratch.ends;
+            int[] ranks = scratch.ranks;
+            Mismatch[] mismatches = null;
+            Arrays.fill(starts, 0, fields.length, -1);
+            int next = 0; // the field the next property likely is: they mostly come in field order
+            do {
+                parser.nextToken();
+                // a parser interns property names by default, so the likely one is found without hashing
+                int[] positions = decoder.specialized && next < fields.length && key == fields[next].name
+                    ? fields[next].positions
+                    : schema.fieldsByKey.get(key);
+                if (!wanted(schema, positions)) { // writer's field not in reader's schema, or projected out
+                    parser.skipChildren();
+                    continue;
+                }
+                next = positions[positions.length - 1] + 1;
+                int level = parser.getParsingContext().getNestingDepth();
+                JsonNode shared = positions.length > 1 ? mapper.readTree(parser) : null; // a name/alias of several fields
+                for (int position : positions) {
+                    if (decoder.skipped(fields[position])) {
+                        continue;
+                    }
+                    int rank = fields[position].rank(key);
+                    if (starts[position] != -1 && rank > ranks[position]) { // the name, or an earlier alias, is there
+                        if (shared == null) {
+                            parser.skipChildren();
+                        }
+                        continue;
+                    }
+                    // a failure only counts if this property is the one the tree would keep
+                    starts[position] = tape.size();
+                    ranks[position] = rank;
+                    int outer = decoder.currentField;
+                    decoder.enterField(fields[position].id);
+                    boolean ok = shared == null ? match(fields[position].node) : decoder.dfs(fields[position].node, shared, level);
+                    decoder.enterField(outer);
+                    if (!ok) {
+                        tape.truncate(starts[position]);
+                        mismatches = mismatches != null ? mismatches : new Mismatch[fields.length];
+                    }
+                    if (mismatches != null) {
+                        mismatches[position] = ok ? null : decoder.mismatch;
+                    }
+                    ends[position] = tape.size();
+                }
+            } while ((key = parser.nextFieldName()) != null);
+            
+            boolean inPlace = true;
+            int end = start;
+            for (int i = 0; i < fields.length; i++) {
+                if (decoder.skipped(fields[i])) {
+                    inPlace &= fields[i].placeholder.size() == 0;
+                } else if (starts[i] == -1) {
+                    if (fields[i].defaultLeaves(decoder.breakAmbiguity) == null) {
+                        return decoder.fail(fields[i].defaultMismatch(decoder.breakAmbiguity));
+                    }
+                    inPlace = false;
+                } else if (mismatches != null && mismatches[i] != null) {
+                    return decoder.fail(mismatches[i].at(fields[i].name));
+                } else if (starts[i] != end) {
+                    inPlace = false;
+                } else {
+                    end = ends[i];
+                }
+            }
+            if (inPlace && end == tape.size()) { // all there, in field order
+                return true;
+            }
+            end = tape.size();
+            for (int i = 0; i < fields.length; i++) {
+                if (decoder.skipped(fields[i])) {
+                    tape.append(fields[i].placeholder, 0, fields[i].placeholder.size());
+                } else if (starts[i] == -1) {
+                    decoder.addDefault(fields[i]);
+                } else {
+                    tape.append(tape, starts[i], ends[i]);
+                }
+            }
+            tape.moveDown(end, start);
+            return true;
+        } finally {
+            scratchDepth--;
+        }
+    }
+    
+    private boolean matchMap(Node schema, String key) throws IOException {
+        int skip = tape.addLong(LeafTape.SKIP, 0);
+        int count = tape.addLong(LeafTape.COUNT, 0);
+        int start = tape.size();
+        // a duplicated key keeps its first position and its last value, as in a tree
+        Scratch scratch = enter(0);
+        int entries = 0;
+        try {
+            Mismatch[] mismatches = null;
+            boolean inPlace = true;
+            do {
+                parser.nextToken();
+                int from = tape.size();
+                decoder.addKey(schema, key);
+                boolean ok = match(schema.items);
+                if (!ok) {
+                    tape.truncate(from);
+                }
+                int entry = scratch.entry(key, entries);
+                if (entry != entries) {
+                    inPlace = false;
+                } else {
+                    entries++;
+                }
+                scratch.starts[entry] = from;
+                scratch.ends[entry] = tape.size();
+                if (!ok && mismatches == null) {
+                    mismatches = new Mismatch[scratch.starts.length];
+                }
+                if (mismatches != null) {
+                    if (mismatches.length <= entry) {
+                        mismatches = Arrays.copyOf(mismatches, scratch.starts.length);
+                    }
+                    mismatches[entry] = ok ? null : decoder.mismatch.at(key);
+                }
+            } while ((key = parser.nextFieldName()) != null);
+            
+            if (mismatches != null) {
+                for (int i = 0; i < entries; i++) {
+                    if (mismatches[i] != null) {
+                        return decoder.fail(mismatches[i]);
+                    }
+                }
+            }
+            if (!inPlace) {
+                int end = tape.size();
+                for (int i = 0; i < entries; i++) {
+                    tape.append(tape, scratch.starts[i], scratch.ends[i]);
+                }
+                tape.moveDown(end, start);
+            }
+        } finally {
+            Arrays.fill(scratch.keys, 0, entries, null); // not to keep the keys
+            scratchDepth--;
+        }
+        tape.setLong(count, entries);
+        tape.setLong(skip, tape.addLong(LeafTape.COUNT, 0) - skip);
+        return true;
+    }
+    
+    /**
+     * The scratch of a record/map one level deeper than the current one, with room for {@code size} fields.
+     */
+    private Scratch enter(int size) {
+        if (scratchDepth == scratches.length) {
+            scratches = Arrays.copyOf(scratches, scratchDepth * 2);
+        }
+        Scratch scratch = scratches[scratchDepth];
+        if (scratch == null) {
+            scratch = scratches[scratchDepth] = new Scratch();
+        }
+        scratchDepth++;
+        scratch.grow(size);
+        scratch.clearKeys();
+        return scratch;
+    }
+    
+    /**
+     * True if some field of {@code record} matches the property {@code key}.
+     */
+    private boolean wanted(Node record, String key) {
+        return wanted(record, record.fieldsByKey.get(key));
+    }
+    
+    /**
+     * True if some of the fields of {@code record} at {@code positions}, if any, isn't skipped.
+     */
+    private boolean wanted(Node record, int[] positions) {
+        if (positions != null) {
+            for (int position : positions) {
+                if (!decoder.skipped(record.fields[position])) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Reads the rest of the current object, whose first property is {@code key}, into a tree for {@code schema}.
+     * A property that no record/map interpretation looks at is skipped, and kept as null
+     * so that the object has the same size.
+     */
+    private ObjectNode bufferObject(Node schema, String key) throws IOException {
+        Node[] objects = schema.type == Schema.Type.UNION ? schema.branches : new Node[] {schema};
+        ObjectNode object = mapper.createObjectNode();
+        do {
+            parser.nextToken();
+            if (schema.mayBeWrapped(key) || wanted(objects, key)) {
+                object.set(key, mapper.readTree(parser));
+            } else {
+                parser.skipChildren();
+                object.putNull(key);
+            }
+        } while ((key = parser.nextFieldName()) != null);
+        return object;
+    }
+    
+    private boolean wanted(Node[] objects, String key) {
+        for (Node object : objects) {
+            if (object.type == Schema.Type.MAP || object.type == Schema.Type.RECORD && wanted(object, key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Where a record keeps its fields' tape segments, or a map its entries' and their keys, while it is matched.
+     */
+    static final class Scratch {
+        int[] starts = new int[16]; // RECORD: per field, -1 if absent; MAP: per entry
+        int[] ends = new int[16];
+        int[] ranks = new int[16]; // RECORD: of the property kept per field, see Field#rank()
+        // MAP: the keys by entry, and an open-addressing table of entry + 1, valid if its stamp is the current one
+        String[] keys = new String[16];
+        int[] slots = new int[32];
+        int[] stamps = new int[32];
+        int stamp;
+        
+        void grow(int size) {
+            if (starts.length < size) {
+                int length = Math.max(size, starts.length * 2);
+                starts = Arrays.copyOf(starts, length);
+                ends = Arrays.copyOf(ends, length);
+                ranks = Arrays.copyOf(ranks, length);
+            }
+        }
+        
+        /**
+         * Empties the table of keys, in constant time.
+         */
+        void clearKeys() {
+            if (++stamp == 0) { // wrapped around, once in 2^32 maps
+                Arrays.fill(stamps, 0);
+                stamp = 1;
+            }
+        }
+        
+        /**
+         * The entry of {@code key}, or {@code entries}, the next one, if it's a new key.
+         */
+        int entry(String key, int entries) {
+            int mask = slots.length - 1;
+            int slot = hash(key) & mask;
+            while (stamps[slot] == stamp) {
+                int entry = slots[slot] - 1;
+                if (keys[entry].equals(key)) {
+                    return entry;
+                }
+                slot = (slot + 1) & mask;
+            }
+            grow(entries + 1);
+            if (keys.length <= entries) {
+                keys = Arrays.copyOf(keys, starts.length);
+            }
+            keys[entries] = key;
+            if (2 * (entries + 1) > slots.length) { // rehash
+                rehash(entries + 1);
+            } else {
+                stamps[slot] = stamp;
+                slots[slot] = entries + 1;
+            }
+            return entries;
+        }
+        
+        private void rehash(int entries) {
+            slots = new int[slots.length * 2];
+            stamps = new int[slots.length];
+            stamp = 1;
+            int mask = slots.length - 1;
+            for (int entry = 0; entry < entries; entry++) {
+                int slot = hash(keys[entry]) & mask;
+                while (stamps[slot] == stamp) {
+                    slot = (slot + 1) & mask;
+                }
+                stamps[slot] = stamp;
+                slots[slot] = entry + 1;
+            }
+        }
+        
+        private static int hash(String key) {
+            int h = key.hashCode();
+            return h ^ (h >>> 16);
+        }
+    }
+}
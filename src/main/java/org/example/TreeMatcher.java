@@ -0,0 +1,811 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.apache.avro.AvroTypeException;
+import org.apache.avro.Schema;
+import org.example.DecodingPlan.Field;
+import org.example.DecodingPlan.Node;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Applies the rules of {@link AutoJsonDecoder} on a {@link JsonNode} tree, on a stack of frames of its own
+ * rather than on the thread's: how deep the json may nest is bounded by {@link AutoJsonDecoder#maxDepth(int)}
+ * and memory, not by the thread's stack size.
+ * <p>
+ *     A frame is a step of the rules on a json value, e.g. a record against an object;
+ *     it pushes a frame for each value it has to match, and is resumed at its {@code state}
+ *     with the {@link #result} of that frame once it's popped. Scalars are matched in place, without a frame;
+ *     if specialized, an object or array that can't be {t:v} skips the DFS and ONCE frames too, see dfs().
+ *     The frames are kept from a datum to the next.
+ * </p>
+ */
+final class TreeMatcher {
+    // what a frame does
+    private static final int DFS = 0;    // a value, walked once per schema, see stepDfs()
+    private static final int ONCE = 1;   // the schema itself, then as a union to rule out an ambiguity
+    private static final int UNION = 2;  // {t:v}, then the first branch that matches
+    private static final int BRANCH = 3; // the union index, then the branch itself
+    private static final int RECORD = 4;
+    private static final int ARRAY = 5;
+    private static final int MAP = 6;
+    
+    private final AutoJsonDecoder decoder;
+    private final LeafTape tape;
+    // dfs results of the current datum, see stepDfs(): an open-addressing table of the trials in use
+    private Trial[] trialTable = new Trial[64];
+    private Trial[] trials = new Trial[16]; // in use first, then spares
+    private int trialCount;
+    private final LeafTape trialLeaves = new LeafTape();
+    private int retries; // frames on the stack that may walk their json again, see retries()
+    private Frame[] frames = new Frame[16];
+    private int depth; // the frames in use
+    private boolean result; // of the frame popped last, or of a value matched in place
+    
+    TreeMatcher(AutoJsonDecoder decoder) {
+        this.decoder = decoder;
+        this.tape = decoder.tape;
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = new Frame();
+        }
+    }
+    
+    /**
+     * Forgets the trials of the last datum.
+     */
+    void clear() {
+        for (int i = 0; i < trialCount; i++) {
+            Trial trial = trials[i];
+            trialTable[trial.slot] = null;
+            trial.node = null; // not to keep the tree
+            trial.mismatch = null;
+        }
+        trialCount = 0;
+        trialLeaves.clear();
+    }
+    
+    /**
+     * Same as {@code decoder.dfs(schema, node)}.
+     * @param level How deep {@code node} is in the json, itself included if it's an object or array:
+     *              1 for an object or array at the root.
+     * @throws AvroTypeException If the json is deeper than {@link AutoJsonDecoder#maxDepth(int)}.
+     */
+    boolean match(Node schema, JsonNode node, int level) {
+        int base = depth;
+        try {
+            if (dfs(schema, node, level)) {
+                while (depth > base) {
+                    Frame frame = frames[depth - 1];
+                    switch (frame.op) {
+                        case DFS:
+                            stepDfs(frame);
+                            break;
+                        case ONCE:
+                            stepOnce(frame);
+                            break;
+                        case UNION:
+                            stepUnion(frame);
+                            break;
+                        case BRANCH:
+                            stepBranch(frame);
+                            break;
+                        case RECORD:
+                            stepRecord(frame);
+                            break;
+                        case ARRAY:
+                            stepArray(frame);
+                            break;
+                        default:
+                            stepMap(frame);
+                            break;
+                    }
+                }
+            }
+            return result;
+        } finally {
+            while (depth > base) { // e.g. too deep
+                if (frames[--depth].retries) {
+                    retries--;
+                }
+            }
+        }
+    }
+    
+    /**
+     * The level of {@code child}, a value in the object or array at {@code level}.
+     */
+    private static int level(int level, JsonNode child) {
+        return child.isContainerNode() ? level + 1 : level;
+    }
+    
+    private Frame push(int op, Node schema, JsonNode node, int level) {
+        if (level > decoder.maxDepth) {
+            throw AutoJsonDecoder.tooDeep(decoder.maxDepth);
+        }
+        if (depth == frames.length) {
+            frames = Arrays.copyOf(frames, depth * 2);
+            for (int i = depth; i < frames.length; i++) {
+                frames[i] = new Frame();
+            }
+        }
+        Frame frame = frames[depth++];
+        frame.op = op;
+        frame.state = 0;
+        frame.schema = schema;
+        frame.node = node;
+        frame.level = level;
+        frame.index = 0;
+        frame.trial = null;
+        frame.checking = false;
+        frame.retries = retries(op, schema, node);
+        if (frame.retries) {
+            retries++;
+        }
+        return frame;
+    }
+    
+    /**
+     * Whether a frame may walk (part of) its json value twice, against the same schema nodes further down:
+     * a union tries {t:v}, then each branch; a non-union is tried as itself, then as {t:v} if it's a single property.
+     * A json value is only walked twice under such a frame, so only there are the walks remembered, see stepDfs().
+     */
+    private boolean retries(int op, Node schema, JsonNode node) {
+        switch (op) {
+            case UNION:
+                return true;
+            case ONCE:
+                return schema.type != Schema.Type.UNION && node.isObject() && node.size() == 1;
+            default:
+                return false;
+        }
+    }
+    
+    private void pop(boolean result) {
+        Frame frame = frames[--depth];
+        if (frame.retries) {
+            retries--;
+        }
+        frame.node = frame.value = null; // not to keep the tree
+        frame.properties = null;
+        this.result = result;
+    }
+    
+    /**
+     * Matches {@code node} against {@code schema}: a scalar in place, if specialized, else in a DFS frame.
+     * @return true if a frame was pushed, false if {@link #result} is the result already; the same goes below.
+     */
+    private boolean dfs(Node schema, JsonNode node, int level) {
+        if (decoder.specialized) {
+            if (!node.isContainerNode()) {
+                decoder.count(DecodingMetrics.NODES);
+                result = schema.scalarMatcher.match(decoder, node);
+                return false;
+            }
+            // nothing to remember for a second walk, and a single interpretation: no DFS and ONCE frames
+            if (retries == 0 && !mayBeWrapped(schema, node) && (schema.type != Schema.Type.UNION || decoder.branchCounts == null)) {
+                if (level > decoder.maxDepth) {
+                    throw AutoJsonDecoder.tooDeep(decoder.maxDepth);
+                }
+                decoder.count(DecodingMetrics.NODES);
+                return schema.type == Schema.Type.UNION ? branches(schema, node, level) : nonUnion(schema, node, level);
+            }
+        }
+        push(DFS, schema, node, level);
+        return true;
+    }
+    
+    /**
+     * Whether the json object/array {@code node} may be {t:v} for {@code schema}, rule#10/#11.
+     */
+    private static boolean mayBeWrapped(Node schema, JsonNode node) {
+        return node.isObject() && node.size() == 1 && schema.mayBeWrapped(node.fieldNames().next());
+    }
+    
+    /**
+     * Rule#12 on a json object/array that can't be {t:v}: straight to the branches that may take it, in order.
+     */
+    private boolean branches(Node union, JsonNode node, int level) {
+        int candidates = union.kindBranches[node.getNodeType().ordinal()].length;
+        if (candidates == 0) {
+            result = decoder.fail(Mismatch.expected(union, node.getNodeType()));
+            return false;
+        }
+        Frame frame = push(UNION, union, node, level);
+        frame.state = BRANCH_NEXT;
+        frame.mark = tape.size();
+        frame.ok1 = false;
+        frame.mismatch1 = null;
+        if (candidates == 1) { // walks its json once
+            frame.retries = false;
+            retries--;
+        }
+        return true;
+    }
+    
+    /**
+     * Matches {@code node} against {@code schema} itself, without rule#10-#12.
+     */
+    private boolean nonUnion(Node schema, JsonNode node, int level) {
+        switch (schema.type) {
+            case RECORD:
+            case MAP:
+                if (!decoder.expect(schema, node, node.isObject())) {
+                    result = false;
+                    return false;
+                }
+                push(schema.type == Schema.Type.RECORD ? RECORD : MAP, schema, node, level);
+                return true;
+            case ARRAY:
+                if (!decoder.expect(schema, node, node.isArray())) {
+                    result = false;
+                    return false;
+                }
+                push(ARRAY, schema, node, level);
+                return true;
+            default:
+                result = leaf(schema, node);
+                return false;
+        }
+    }
+    
+    private boolean leaf(Node schema, JsonNode node) {
+        switch (schema.type) {
+            case ENUM:
+                return decoder.dfsEnum(schema, node);
+            case FIXED:
+                return decoder.dfsBytes(schema, node, schema.fixedSize);
+            case BYTES:
+                return decoder.dfsBytes(schema, node, -1);
+            case INT:
+            case LONG:
+            case FLOAT:
+            case DOUBLE:
+                if (!decoder.expect(schema, node, node.isNumber())) {
+                    return false;
+                }
+                decoder.addNumber(node); // converted at read time
+                return true;
+            case STRING:
+                if (!decoder.expect(schema, node, node.isTextual())) {
+                    return false;
+                }
+                decoder.addString(schema, node.asText());
+                return true;
+            case BOOLEAN:
+                if (!decoder.expect(schema, node, node.isBoolean())) {
+                    return false;
+                }
+                tape.addLong(LeafTape.BOOLEAN, node.asBoolean() ? 1 : 0);
+                return true;
+            case NULL:
+                return decoder.expect(schema, node, node.isNull());
+            case UNION: // only by rule#10 or rule#12
+                return decoder.fail(Mismatch.expected(schema, node.getNodeType()));
+        }
+        throw new IllegalArgumentException("Unknown schema type: " + schema.type);
+    }
+    
+    /**
+     * Appends the leaves to the tape; {@link #result} is false if there is no single interpretation,
+     * see {@link AutoJsonDecoder#mismatch}; the tape may then hold leftovers, to be truncated by the caller.
+     */
+    private void stepDfs(Frame frame) {
+        if (frame.state == 0) {
+            decoder.count(DecodingMetrics.NODES);
+            // rule#10-#12 may walk a json object/array against the same schema again and again,
+            // exponentially in the nesting depth; the result is kept from the second walk on
+            if (retries != 0 && frame.node.isContainerNode()) {
+                Trial trial = trial(frame.schema, frame.node);
+                if (trial != null && trial.done) {
+                    if (trial.mismatch != null) {
+                        pop(decoder.fail(trial.mismatch));
+                    } else {
+                        tape.append(trialLeaves, trial.from, trial.to);
+                        pop(true);
+                    }
+                    return;
+                }
+                frame.trial = trial; // null on the first walk
+                frame.mark = tape.size();
+            }
+            frame.state = 1;
+            push(ONCE, frame.schema, frame.node, frame.level);
+            return;
+        }
+        Trial trial = frame.trial;
+        if (trial != null) {
+            trial.done = true;
+            if (result) {
+                trial.from = trialLeaves.size();
+                trialLeaves.append(tape, frame.mark, tape.size());
+                trial.to = trialLeaves.size();
+            } else {
+                trial.mismatch = decoder.mismatch;
+            }
+        }
+        pop(result);
+    }
+    
+    /**
+     * The trial of {@code node} against {@code schema} if it was walked before in this datum;
+     * else null, and the walk is remembered.
+     */
+    private Trial trial(Node schema, JsonNode node) {
+        int mask = trialTable.length - 1;
+        int slot = Trial.hash(schema, node) & mask;
+        for (Trial trial; (trial = trialTable[slot]) != null; slot = (slot + 1) & mask) {
+            if (trial.schema == schema && trial.node == node) {
+                return trial;
+            }
+        }
+        if (trialCount == trials.length) {
+            trials = Arrays.copyOf(trials, trialCount * 2);
+        }
+        Trial trial = trials[trialCount];
+        if (trial == null) {
+            trial = trials[trialCount] = new Trial();
+        }
+        trialCount++;
+        trial.schema = schema;
+        trial.node = node;
+        trial.done = false;
+        trial.slot = slot;
+        trialTable[slot] = trial;
+        if (2 * trialCount > trialTable.length) {
+            trialTable = new Trial[trialTable.length * 2];
+            mask = trialTable.length - 1;
+            for (int i = 0; i < trialCount; i++) {
+                slot = Trial.hash(trials[i].schema, trials[i].node) & mask;
+                while (trialTable[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                trials[i].slot = slot;
+                trialTable[slot] = trials[i];
+            }
+        }
+        return null;
+    }
+    
+    private void stepOnce(Frame frame) {
+        Node schema = frame.schema;
+        switch (frame.state) {
+            case 0:
+                frame.mark = tape.size();
+                frame.state = 1;
+                if (!nonUnion(schema, frame.node, frame.level)) {
+                    onceNonUnion(frame);
+                }
+                return;
+            case 1:
+                onceNonUnion(frame);
+                return;
+            default:
+                boolean ok2 = result;
+                if (!frame.ok1 && !ok2) {
+                    if (schema.type != Schema.Type.UNION) { // a non-union reading tells more
+                        decoder.mismatch = frame.mismatch1;
+                    }
+                    pop(false);
+                } else if (frame.ok1 && ok2) {
+                    pop(decoder.fail(Mismatch.ambiguity(schema, frame.node.getNodeType())));
+                } else {
+                    if (frame.ok1) {
+                        tape.truncate(frame.mark2);
+                    }
+                    pop(true);
+                }
+        }
+    }
+    
+    /**
+     * ONCE, with {@link #result} of the schema itself: done, or on to rule out an ambiguity as a union.
+     */
+    private void onceNonUnion(Frame frame) {
+        Node schema = frame.schema;
+        frame.ok1 = result;
+        if (result && (decoder.breakAmbiguity || !schema.wrapAmbiguous)) {
+            pop(true);
+            return;
+        }
+        frame.mismatch1 = decoder.mismatch;
+        frame.mark2 = result ? tape.size() : frame.mark;
+        tape.truncate(frame.mark2);
+        frame.state = 2;
+        push(UNION, schema, frame.node, frame.level).checking = result; // counted if {t:v} is tried indeed
+    }
+    
+    // UNION states
+    private static final int WRAPPED = 1;      // {t:v} against a non-union: back from v
+    private static final int NAMED = 2;        // back from the branch named t
+    private static final int PROMOTION = 3;    // the next branch t promotes to
+    private static final int PROMOTED = 4;     // back from it
+    private static final int UNWRAPPED = 5;    // done with {t:v}
+    private static final int BRANCH_NEXT = 6;  // rule#12: the next branch
+    private static final int BRANCH_BACK = 7;  // back from it
+    private static final int PREDICTED = 8;    // adaptive: back from the predicted branch
+    private static final int EARLIER_NEXT = 9; // adaptive: the next branch before the predicted one
+    private static final int EARLIER_BACK = 10;
+    private static final int DONE = 11;        // result is whether rule#12 matched
+    
+    private void stepUnion(Frame frame) {
+        Node schema = frame.schema;
+        JsonNode node = frame.node;
+        for (;;) {
+            switch (frame.state) {
+                case 0: // {t:v}
+                    frame.mark = tape.size();
+                    frame.ok1 = false;
+                    frame.mismatch1 = null;
+                    frame.state = UNWRAPPED;
+                    if (!node.isObject() || node.size() != 1) {
+                        continue;
+                    }
+                    frame.key = node.fieldNames().next();
+                    frame.value = node.get(frame.key);
+                    int level = level(frame.level, frame.value);
+                    if (schema.type != Schema.Type.UNION) {
+                        // writer union, reader not
+                        if (schema.typeMatch(frame.key)) {
+                            if (frame.checking) {
+                                decoder.count(DecodingMetrics.AMBIGUITY_CHECKS);
+                            }
+                            frame.state = WRAPPED;
+                            if (nonUnion(schema, frame.value, level)) {
+                                return;
+                            }
+                        }
+                        continue;
+                    }
+                    // writer union, reader union
+                    Integer index = schema.indexNamed.get(frame.key);
+                    if (index != null) { // exact name match
+                        frame.state = NAMED;
+                        push(BRANCH, schema, frame.value, level).index = index;
+                        return;
+                    }
+                    // {"long":0} should match "float" in schema ["int", "float","double"]
+                    frame.candidates = schema.promotions(frame.key);
+                    frame.index = 0;
+                    frame.state = PROMOTION;
+                    continue;
+                case WRAPPED:
+                    frame.ok1 = result;
+                    frame.state = UNWRAPPED;
+                    continue;
+                case NAMED:
+                    frame.ok1 = result;
+                    if (!result) {
+                        frame.mismatch1 = decoder.mismatch.at(frame.key);
+                    }
+                    frame.state = UNWRAPPED;
+                    continue;
+                case PROMOTION:
+                    if (frame.index == frame.candidates.length) {
+                        frame.state = UNWRAPPED;
+                        continue;
+                    }
+                    frame.state = PROMOTED;
+                    push(BRANCH, schema, frame.value, level(frame.level, frame.value)).index = frame.candidates[frame.index];
+                    return;
+                case PROMOTED:
+                    frame.ok1 = result;
+                    frame.index++;
+                    frame.state = result ? UNWRAPPED : PROMOTION;
+                    continue;
+                case UNWRAPPED:
+                    if (schema.type != Schema.Type.UNION) { // no rule#12 to try
+                        if (frame.ok1) {
+                            pop(true);
+                            return;
+                        }
+                        result = false;
+                        frame.state = DONE;
+                        continue;
+                    }
+                    if (frame.ok1 && (decoder.breakAmbiguity || !schema.wrapAmbiguous(frame.key))) {
+                        pop(true);
+                        return;
+                    }
+                    frame.mark2 = frame.ok1 ? tape.size() : frame.mark;
+                    tape.truncate(frame.mark2);
+                    if (frame.ok1) {
+                        decoder.count(DecodingMetrics.AMBIGUITY_CHECKS);
+                    }
+                    // any node against union: first type in union that matches
+                    if (decoder.branchCounts != null) {
+                        frame.state = PREDICTED;
+                        if (predict(frame)) {
+                            return;
+                        }
+                    } else {
+                        frame.index = 0;
+                        frame.state = BRANCH_NEXT;
+                    }
+                    continue;
+                case BRANCH_NEXT:
+                    // a branch that can't take the json type isn't tried, as for a scalar, see ScalarMatcher
+                    int[] candidates = schema.kindBranches[node.getNodeType().ordinal()];
+                    if (frame.index == candidates.length) {
+                        result = false;
+                        frame.state = DONE;
+                        continue;
+                    }
+                    frame.state = BRANCH_BACK;
+                    push(BRANCH, schema, node, frame.level).index = candidates[frame.index];
+                    return;
+                case BRANCH_BACK:
+                    frame.index++;
+                    frame.state = result ? DONE : BRANCH_NEXT;
+                    continue;
+                case PREDICTED:
+                    frame.predictedOk = result;
+                    frame.end = tape.size();
+                    frame.index = 0;
+                    frame.state = EARLIER_NEXT;
+                    continue;
+                case EARLIER_NEXT:
+                    // a branch before the prediction still wins if it matches too
+                    int predicted = frame.predicted;
+                    int end = frame.predictedOk ? predicted : schema.branches.length;
+                    while (frame.index < end && (frame.index == predicted && predicted != 0
+                        || !schema.branches[frame.index].mayTake(node, decoder.breakAmbiguity))) {
+                        frame.index++; // failed already, or can't match
+                    }
+                    if (frame.index == end) {
+                        result = learn(schema, frame.predictedOk ? predicted : -1, predicted);
+                        frame.state = DONE;
+                        continue;
+                    }
+                    frame.state = EARLIER_BACK;
+                    push(BRANCH, schema, node, frame.level).index = frame.index;
+                    return;
+                case EARLIER_BACK:
+                    if (!result) {
+                        frame.index++;
+                        frame.state = EARLIER_NEXT;
+                        continue;
+                    }
+                    if (frame.predictedOk) { // drop the prediction's leaves
+                        tape.moveDown(frame.end, frame.mark2);
+                    }
+                    result = learn(schema, frame.index, frame.predicted);
+                    frame.state = DONE;
+                    continue;
+                default:
+                    boolean ok1 = frame.ok1;
+                    boolean ok2 = result;
+                    if (!ok1 && !ok2) {
+                        pop(decoder.fail(frame.mismatch1 != null ? frame.mismatch1 : Mismatch.expected(schema, node.getNodeType())));
+                    } else if (ok1 && ok2) {
+                        pop(decoder.fail(Mismatch.ambiguity(schema, node.getNodeType())));
+                    } else {
+                        if (ok1) {
+                            tape.truncate(frame.mark2);
+                        }
+                        pop(true);
+                    }
+                    return;
+            }
+        }
+    }
+    
+    /**
+     * Adaptive rule#12: tries the predicted branch first, see {@link AutoJsonDecoder#adaptive(boolean)}.
+     */
+    private boolean predict(Frame frame) {
+        Node union = frame.schema;
+        long[][] branchCounts = decoder.branchCounts;
+        if (branchCounts[union.unionId] == null) {
+            branchCounts[union.unionId] = new long[union.branches.length];
+        }
+        frame.predicted = decoder.predictions[union.unionId];
+        if (frame.predicted == 0) {
+            result = false;
+            return false;
+        }
+        push(BRANCH, union, frame.node, frame.level).index = frame.predicted;
+        return true;
+    }
+    
+    /**
+     * Counts the branch that matched, -1 if none.
+     * @return Whether one did.
+     */
+    private boolean learn(Node union, int match, int predicted) {
+        if (match == -1) {
+            return false;
+        }
+        long[] counts = decoder.branchCounts[union.unionId];
+        if (++counts[match] > counts[predicted]) {
+            decoder.predictions[union.unionId] = match;
+        }
+        return true;
+    }
+    
+    /**
+     * Appends the union index, then the leaves of the branch.
+     */
+    private void stepBranch(Frame frame) {
+        if (frame.state == 0) {
+            decoder.count(DecodingMetrics.BRANCH_TRIALS);
+            frame.mark = tape.addLong(LeafTape.INT, frame.index);
+            frame.state = 1;
+            if (nonUnion(frame.schema.branches[frame.index], frame.node, frame.level)) {
+                return;
+            }
+        }
+        if (!result) {
+            decoder.count(DecodingMetrics.BRANCH_FAILURES);
+            tape.truncate(frame.mark);
+        }
+        pop(result);
+    }
+    
+    private void stepRecord(Frame frame) {
+        Field[] fields = frame.schema.fields;
+        if (frame.state == 1) { // back from the value of a field
+            decoder.enterField(frame.outer);
+            if (!result) {
+                pop(decoder.fail(decoder.mismatch.at(fields[frame.index].name)));
+                return;
+            }
+            frame.index++;
+        }
+        frame.state = 1;
+        // schema resolution:
+        // - fields are matched by name/alias; ordering doesn't matter.
+        // - writer's fields not in reader's schema are ignored
+        // - reader's default field values are used if the field isn't in writer's.
+        for (; frame.index < fields.length; frame.index++) {
+            Field field = fields[frame.index];
+            if (decoder.skipped(field)) {
+                tape.append(field.placeholder, 0, field.placeholder.size());
+                continue;
+            }
+            JsonNode node = frame.node;
+            JsonNode value = node.get(field.name);
+            for (int i = 0; value == null && i < field.aliases.length; i++) {
+                value = node.get(field.aliases[i]);
+            }
+            if (value == null) { // the default, expanded at plan time
+                if (!decoder.addDefault(field)) {
+                    pop(false);
+                    return;
+                }
+                continue;
+            }
+            frame.outer = decoder.currentField;
+            decoder.enterField(field.id);
+            if (dfs(field.node, value, level(frame.level, value))) {
+                return;
+            }
+            decoder.enterField(frame.outer);
+            if (!result) {
+                pop(decoder.fail(decoder.mismatch.at(field.name)));
+                return;
+            }
+        }
+        pop(true);
+    }
+    
+    private void stepArray(Frame frame) {
+        JsonNode node = frame.node;
+        if (frame.state == 0) {
+            frame.mark = tape.addLong(LeafTape.SKIP, 0);
+            if (!node.isEmpty()) {
+                tape.addLong(LeafTape.COUNT, node.size());
+            }
+            frame.state = 1;
+        } else if (!result) { // back from an item
+            pop(decoder.fail(decoder.mismatch.at(frame.index)));
+            return;
+        } else {
+            frame.index++;
+        }
+        Node items = frame.schema.items;
+        for (; frame.index < node.size(); frame.index++) {
+            JsonNode item = node.get(frame.index);
+            if (dfs(items, item, level(frame.level, item))) {
+                return;
+            }
+            if (!result) {
+                pop(decoder.fail(decoder.mismatch.at(frame.index)));
+                return;
+            }
+        }
+        tape.setLong(frame.mark, tape.addLong(LeafTape.COUNT, 0) - frame.mark);
+        pop(true);
+    }
+    
+    private void stepMap(Frame frame) {
+        if (frame.state == 0) {
+            frame.mark = tape.addLong(LeafTape.SKIP, 0);
+            if (!frame.node.isEmpty()) {
+                tape.addLong(LeafTape.COUNT, frame.node.size());
+            }
+            frame.properties = frame.node.properties().iterator();
+            frame.state = 1;
+        } else if (!result) { // back from a value
+            pop(decoder.fail(decoder.mismatch.at(frame.key)));
+            return;
+        }
+        Node schema = frame.schema;
+        while (frame.properties.hasNext()) {
+            Map.Entry<String, JsonNode> property = frame.properties.next();
+            frame.key = property.getKey();
+            decoder.addKey(schema, frame.key);
+            JsonNode value = property.getValue();
+            if (dfs(schema.items, value, level(frame.level, value))) {
+                return;
+            }
+            if (!result) {
+                pop(decoder.fail(decoder.mismatch.at(frame.key)));
+                return;
+            }
+        }
+        tape.setLong(frame.mark, tape.addLong(LeafTape.COUNT, 0) - frame.mark);
+        pop(true);
+    }
+    
+    private static final class Frame {
+        int op;
+        int state; // where to resume
+        Node schema;
+        JsonNode node;
+        int level; // of node
+        int index; // the field, item, branch, branch candidate or promotion being matched
+        int mark; // tape positions to truncate to
+        int mark2;
+        boolean ok1; // ONCE: the schema itself matched; UNION: {t:v} matched
+        Mismatch mismatch1; // why it didn't
+        Trial trial; // DFS: of a second walk
+        boolean checking; // UNION: under a ONCE frame whose schema matched already, so {t:v} is an ambiguity check
+        boolean retries; // see retries()
+        int outer; // RECORD: decoder.currentField around a field
+        String key; // UNION: t of {t:v}; MAP: the key being matched
+        JsonNode value; // UNION: v of {t:v}
+        int[] candidates; // UNION: the branches t promotes to
+        Iterator<Map.Entry<String, JsonNode>> properties; // MAP
+        // UNION, adaptive
+        int predicted;
+        boolean predictedOk;
+        int end; // of the prediction's leaves
+    }
+    
+    /**
+     * A json object/array against a schema node, both by identity; kept for the next datums once cleared.
+     */
+    private static final class Trial {
+        Node schema;
+        JsonNode node;
+        int slot; // in trialTable
+        boolean done;
+        int from; // leaves in trialLeaves, if matched
+        int to;
+        Mismatch mismatch;
+        
+        static int hash(Node schema, JsonNode node) {
+            int h = 31 * System.identityHashCode(schema) + System.identityHashCode(node);
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -1,19 +1,49 @@
 package org.example;
 
+import org.apache.avro.AvroTypeException;
 import org.apache.avro.Schema;
+import org.apache.avro.data.TimeConversions;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.DataFileWriter;
 import org.apache.avro.generic.GenericData;
 import org.apache.avro.generic.GenericDatumReader;
 import org.apache.avro.generic.GenericDatumWriter;
 import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
 import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.DecoderFactory;
 import org.apache.avro.io.Encoder;
 import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.util.Utf8;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.FutureTask;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class TestAutoJsonDecoder {
     
@@ -37,7 +67,7 @@ class TestAutoJsonDecoder {
                 { "name": "desc",  "type": ["null", "string"] }
               ]
             }""");
-
+        
         GenericRecord record = new GenericData.Record(writersSchema);
         record.put("size", 123);
         record.put("heavy", false);
@@ -69,4 +99,1045 @@ class TestAutoJsonDecoder {
         assertEquals(json2, """
             {"size":123.0,"note":"parsley","good":true}""");
     }
-}
\ No newline at end of file
+    
+    @Test
+    void planIsSharedAcrossDecoders() throws Exception {
+        Schema schema = new Schema.Parser().parse("""
+            {
+              "type": "record",
+              "name": "Thing",
+              "fields": [
+                { "name": "size", "type": "long", "aliases": ["weight"] },
+                { "name": "tags", "type": {"type": "array", "items": "string"}, "default": ["a", "b"] },
+                { "name": "desc", "type": ["null", "string"], "default": null }
+              ]
+            }""");
+        assertSame(DecodingPlan.of(schema), DecodingPlan.of(schema));
+        
+        GenericDatumReader<GenericRecord> datumReader = new GenericDatumReader<>(schema, schema);
+        AutoJsonDecoder decoder = new AutoJsonDecoder(schema, """
+            {"weight":1} {"size":2,"tags":[],"desc":"x"} {"size":3}""");
+        assertEquals("""
+            {"size":1,"tags":["a","b"],"desc":null}""", toJson(datumReader.read(null, decoder), schema));
+        assertEquals("""
+            {"size":2,"tags":[],"desc":{"string":"x"}}""", toJson(datumReader.read(null, decoder), schema));
+        assertEquals("""
+            {"size":3,"tags":["a","b"],"desc":null}""", toJson(datumReader.read(null, decoder), schema));
+    }
+    
+    @Test
+    void nestedRecordDefaultsExpandInAnyOrder() throws Exception {
+        String outer = """
+            {
+              "type": "record",
+              "name": "Outer",
+              "fields": [
+                { "name": "inner", "type": {
+                  "type": "record",
+                  "name": "Inner",
+                  "fields": [ { "name": "x", "type": "int", "default": 5 } ]
+                }, "default": {} },
+                { "name": "a", "type": "int" }
+              ]
+            }""";
+        // the fields' order in the plan depends on identity hashes: parse anew to vary it
+        for (int i = 0; i < 20; i++) {
+            Schema schema = new Schema.Parser().parse(outer);
+            GenericDatumReader<GenericRecord> datumReader = new GenericDatumReader<>(schema, schema);
+            for (boolean streaming : new boolean[] {false, true}) {
+                AutoJsonDecoder decoder = new AutoJsonDecoder(schema, "{\"a\":1}").streaming(streaming);
+                assertEquals("""
+                    {"inner":{"x":5},"a":1}""", toJson(datumReader.read(null, decoder), schema));
+            }
+        }
+        
+        // a default that leaves out its own field would nest forever: no usable default, rather than a crash
+        Schema recursive = new Schema.Parser().setValidateDefaults(false).parse("""
+            {
+              "type": "record",
+              "name": "Loop",
+              "fields": [
+                { "name": "next", "type": ["Loop", "null"], "default": {} },
+                { "name": "a", "type": "int" }
+              ]
+            }""");
+        AvroTypeException e = assertThrows(AvroTypeException.class,
+            () -> new GenericDatumReader<GenericRecord>(recursive).read(null, new AutoJsonDecoder(recursive, "{\"a\":1}")));
+        assertTrue(e.getMessage().contains("invalid default of field next"), e.getMessage());
+    }
+    
+    @Test
+    void leafTapeTruncatesCopiesAndGrows() {
+        LeafTape tape = new LeafTape();
+        tape.addLong(LeafTape.INT, 7);
+        int mark = tape.size();
+        // past the first 64 leaves and 256 bytes of arena
+        for (int i = 0; i < 100; i++) {
+            tape.addString("\u00e9-" + i + "-".repeat(i % 10));
+            tape.addDouble(i + 0.5);
+        }
+        tape.addObject(LeafTape.NODE, "n");
+        assertEquals(202, tape.size());
+        
+        LeafTape copy = tape.copy(mark, tape.size());
+        tape.truncate(mark); // a failed trial
+        tape.addLatin1("\u00ff");
+        assertEquals(2, tape.size());
+        
+        assertEquals(201, copy.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(LeafTape.STRING, copy.peekTag());
+            assertEquals("\u00e9-" + i + "-".repeat(i % 10), copy.nextString());
+            assertEquals(i + 0.5, copy.nextDouble());
+        }
+        assertEquals("n", copy.nextObject());
+        assertFalse(copy.hasNext());
+        
+        // the truncated leaves are gone, the copy's arena is its own
+        assertEquals(7, tape.nextLong());
+        byte[] bytes = new byte[tape.peekLength()];
+        tape.nextBytes(bytes, 0);
+        assertArrayEquals(new byte[] {(byte) 0xFF}, bytes);
+        assertFalse(tape.hasNext());
+        
+        // appended from itself, then the first leaves dropped
+        tape.append(tape, 0, 2);
+        tape.moveDown(2, 1);
+        assertEquals(3, tape.size());
+        tape.clear();
+        assertEquals(0, tape.size());
+    }
+    
+    @Test
+    void streamingReusesItsScratchAcrossDatums() throws Exception {
+        Schema schema = new Schema.Parser().parse("""
+            {
+              "type": "record",
+              "name": "Thing",
+              "fields": [
+                { "name": "size", "type": "int" },
+                { "name": "inner", "type": {"type": "record", "name": "Inner", "fields": [
+                  { "name": "a", "type": "int" }, { "name": "b", "type": "int" }
+                ]} },
+                { "name": "sizes", "type": {"type": "array", "items": "int"} },
+                { "name": "counts", "type": {"type": "map", "values": "int"} }
+              ]
+            }""");
+        StringBuilder json = new StringBuilder();
+        int datums = 1000;
+        for (int i = 0; i < datums; i++) {
+            json.append("{\"inner\":{\"b\":2,\"a\":1},\"size\":").append(i)
+                .append(",\"sizes\":[1,2,3],\"counts\":{\"k\":1,\"j\":2,\"k\":3}}\n");
+        }
+        AutoJsonDecoder decoder = AutoJsonDecoderFactory.get()
+            .autoJsonDecoder(schema, json.toString().getBytes(StandardCharsets.UTF_8)).streaming(true);
+        // a duplicated key keeps its first position and its last value, as in a tree
+        GenericRecord first = new GenericDatumReader<GenericRecord>(schema).read(null, decoder);
+        assertEquals("{\"a\": 1, \"b\": 2}", first.get("inner").toString());
+        assertEquals(Map.of(new Utf8("k"), 3, new Utf8("j"), 2), first.get("counts"));
+    
+        // the scratch of each nesting level, and its buffers, are kept from a datum to the next
+        TokenMatcher.Scratch outer = decoder.tokenMatcher.scratches[0];
+        TokenMatcher.Scratch inner = decoder.tokenMatcher.scratches[1];
+        int[] starts = inner.starts;
+        String[] keys = inner.keys;
+        int[] slots = inner.slots;
+        for (int i = 1; i < datums; i++) {
+            assertEquals(i, decoder.readInt());
+            decoder.readInt();
+            decoder.readInt();
+            for (long n = decoder.readArrayStart(); n != 0; n = decoder.arrayNext()) {
+                for (long j = 0; j < n; j++) {
+                    decoder.readInt();
+                }
+            }
+            for (long n = decoder.readMapStart(); n != 0; n = decoder.mapNext()) {
+                for (long j = 0; j < n; j++) {
+                    decoder.skipString();
+                    decoder.readInt();
+                }
+            }
+        }
+        assertSame(outer, decoder.tokenMatcher.scratches[0]);
+        assertSame(inner, decoder.tokenMatcher.scratches[1]);
+        assertNull(decoder.tokenMatcher.scratches[2]);
+        assertSame(starts, inner.starts);
+        assertSame(keys, inner.keys);
+        assertSame(slots, inner.slots);
+        assertNull(keys[0]); // not to keep the keys
+    }
+    
+    @Test
+    void streamingMatchesTree() throws Exception {
+        Schema schema = new Schema.Parser().parse("""
+            {
+              "type": "record",
+              "name": "Thing",
+              "fields": [
+                { "name": "size", "type": ["null", "int", "string"] },
+                { "name": "parts", "type": {"type": "map", "values": ["null", "Thing"]}, "default": {} },
+                { "name": "note", "type": "string", "aliases": ["desc"], "default": "" }
+              ]
+            }""");
+        String json = """
+            {"extra":[1,{"a":2}],"size":{"int":1},"parts":{"p":{"Thing":{"size":null}},"q":{"size":"x","note":"n"}}}
+            {"desc":"d","size":"s","parts":{"p":null,"p":{"size":2}}}
+            {"size":3,"note":"n","desc":"d"}""";
+        GenericDatumReader<GenericRecord> datumReader = new GenericDatumReader<>(schema, schema);
+        AutoJsonDecoder tree = new AutoJsonDecoder(schema, json);
+        AutoJsonDecoder streaming = new AutoJsonDecoder(schema, json).streaming(true);
+        AutoJsonDecoder generic = new AutoJsonDecoder(schema, json).specialized(false);
+        for (int i = 0; i < 3; i++) {
+            GenericRecord expected = datumReader.read(null, generic);
+            assertEquals(expected, datumReader.read(null, tree));
+            assertEquals(expected, datumReader.read(null, streaming));
+        }
+        
+        // a float is parsed from its text, not rounded twice through a double
+        Schema floats = new Schema.Parser().parse("{\"type\": \"array\", \"items\": \"float\"}");
+        String text = "1.00000017881393432617187499";
+        List<Float> parsed = List.of(Float.parseFloat(text), 2f);
+        for (boolean stream : new boolean[] { false, true }) {
+            AutoJsonDecoder decoder = new AutoJsonDecoder(floats, "[" + text + ", 2]").streaming(stream);
+            assertEquals(parsed, new AutoJsonDatumReader<List<Float>>(floats).read(null, decoder));
+        }
+    }
+    
+    @Test
+    void mismatchIsReportedAtRoot() throws Exception {
+        Schema schema = new Schema.Parser().parse("""
+            {
+              "type": "record",
+              "name": "Thing",
+              "fields": [
+                { "name": "parts", "type": {"type": "array", "items": ["null", "int", "boolean"]} }
+              ]
+            }""");
+        GenericDatumReader<GenericRecord> datumReader = new GenericDatumReader<>(schema, schema);
+        for (boolean streaming : new boolean[] { false, true }) {
+            AutoJsonDecoder decoder = new AutoJsonDecoder(schema, """
+                {"parts":[1,null,"x"]}""").streaming(streaming);
+            AvroTypeException e = assertThrows(AvroTypeException.class, () -> datumReader.read(null, decoder));
+            assertEquals("Expected UNION [null, int, boolean]. Got STRING at $.parts[2]", e.getMessage());
+        }
+        
+        // a union's one array/record branch failing is the union failing, streaming or not
+        Schema branches = new Schema.Parser().parse("""
+            {
+              "type": "record",
+              "name": "Thing",
+              "fields": [
+                { "name": "list", "type": ["null", {"type": "array", "items": "int"}], "default": null },
+                { "name": "part", "type": ["null", {"type": "record", "name": "Part", "fields": [{ "name": "n", "type": "int" }]}], "default": null }
+              ]
+            }""");
+        GenericDatumReader<GenericRecord> branchReader = new GenericDatumReader<>(branches, branches);
+        Map<String, String> messages = Map.of(
+            "{\"list\":[1,\"x\"]}", "Expected UNION [null, array]. Got ARRAY at $.list",
+            "{\"part\":{\"n\":\"x\"}}", "Expected UNION [null, Part]. Got OBJECT at $.part");
+        for (Map.Entry<String, String> message : messages.entrySet()) {
+            for (boolean streaming : new boolean[] { false, true }) {
+                AutoJsonDecoder decoder = new AutoJsonDecoder(branches, message.getKey()).streaming(streaming);
+                AvroTypeException e = assertThrows(AvroTypeException.class, () -> branchReader.read(null, decoder));
+                assertEquals(message.getValue(), e.getMessage(), message.getKey() + (streaming ? " streaming" : ""));
+            }
+        }
+    }
+    
+    @Test
+    void rootCollectionsAreMatchedInBlocks() throws Exception {
+        Schema schema = new Schema.Parser().parse("""
+            {"type": "array", "items": ["null", "int"]}""");
+        AutoJsonDecoder decoder = new AutoJsonDecoder(schema, """
+            [1,2,3,4,5,6,7]
+            [1,null,3,"x",5]
+            [1,2,3,4,5]
+            [9]""").blockSize(3);
+        assertEquals(3, decoder.readArrayStart());
+        long sum = 0;
+        for (long n = 3; n != 0; n = decoder.arrayNext()) {
+            for (long i = 0; i < n; i++) {
+                sum += decoder.readIndex() == 1 ? decoder.readInt() : 0;
+            }
+        }
+        assertEquals(28, sum);
+        
+        // the bad item is only found with its block
+        GenericDatumReader<Object> datumReader = new GenericDatumReader<>(schema, schema);
+        assertEquals(3, decoder.readArrayStart());
+        assertEquals(1, decoder.readIndex());
+        assertEquals(1, decoder.readInt());
+        assertEquals(0, decoder.readIndex());
+        assertEquals(1, decoder.readIndex());
+        assertEquals(3, decoder.readInt());
+        AvroTypeException e = assertThrows(AvroTypeException.class, decoder::arrayNext);
+        assertEquals("Expected UNION [null, int]. Got STRING at $[3]", e.getMessage());
+        
+        assertEquals(0, decoder.skipArray()); // only the first block is matched
+        assertEquals(List.of(9), datumReader.read(null, decoder));
+        
+        Schema mapSchema = new Schema.Parser().parse("""
+            {"type": "map", "values": "long", "avro.java.string": "String"}""");
+        GenericDatumReader<Object> mapReader = new GenericDatumReader<>(mapSchema, mapSchema);
+        AutoJsonDecoder maps = new AutoJsonDecoder(mapSchema, """
+            {"a":1,"b":2,"c":3}
+            {"map":{"a":1}}""").blockSize(2);
+        assertEquals(Map.of("a", 1L, "b", 2L, "c", 3L), mapReader.read(null, maps));
+        assertEquals(Map.of("a", 1L), mapReader.read(null, maps)); // {t:v}, matched whole
+    }
+    
+    @Test
+    void interningSharesRepeatedStrings() throws Exception {
+        Schema schema = new Schema.Parser().parse("""
+            {
+              "type": "record",
+              "name": "Event",
+              "fields": [
+                { "name": "country", "type": {"type": "string", "avro.java.string": "String"} },
+                { "name": "id", "type": {"type": "string", "avro.java.string": "String"} },
+                { "name": "counts", "type": {"type": "map", "values": "int", "avro.java.string": "String"} }
+              ]
+            }""");
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            json.append("{\"country\":\"NL\",\"id\":\"").append(i).append("\",\"counts\":{\"clicks\":").append(i).append("}}\n");
+        }
+        GenericDatumReader<GenericRecord> datumReader = new GenericDatumReader<>(schema, schema);
+        for (boolean streaming : new boolean[] { false, true }) {
+            StringInterner interner = new StringInterner(64, 10, 0.5);
+            AutoJsonDecoder decoder = new AutoJsonDecoder(schema, json.toString()).streaming(streaming).interning(interner);
+            GenericRecord first = datumReader.read(null, decoder);
+            GenericRecord second = datumReader.read(null, decoder);
+            assertSame(first.get("country"), second.get("country"));
+            assertSame(((Map<?, ?>) first.get("counts")).keySet().iterator().next(),
+                ((Map<?, ?>) second.get("counts")).keySet().iterator().next());
+            for (int i = 2; i < 100; i++) {
+                datumReader.read(null, decoder);
+            }
+            // ids never repeat: given up on after 10 lookups
+            assertEquals(99 / 110.0, interner.hitRate(), 1e-9);
+        }
+    }
+    
+    @Test
+    void routerPicksTheSchemaEachDatumMatches() throws Exception {
+        Schema click = new Schema.Parser().parse("""
+            {
+              "type": "record",
+              "name": "Click",
+              "fields": [
+                { "name": "url", "type": "string" },
+                { "name": "button", "type": {"type": "enum", "name": "Button", "symbols": ["LEFT", "RIGHT"]} }
+              ]
+            }""");
+        Schema view = new Schema.Parser().parse("""
+            {
+              "type": "record",
+              "name": "View",
+              "fields": [
+                { "name": "url", "type": "string" },
+                { "name": "millis", "type": "long" },
+                { "name": "referrer", "type": ["null", "string"], "default": null }
+              ]
+            }""");
+        AutoJsonRouter router = new AutoJsonRouter(List.of(click, view)).configure("""
+            {"url":"a","button":"LEFT"}
+            {"url":"b","millis":12}
+            {"url":"c","button":"MIDDLE","millis":5}
+            {"url":"d","button":"MIDDLE"}
+            """);
+        assertSame(click, router.next());
+        assertEquals("LEFT", new GenericDatumReader<GenericRecord>(click).read(null, router.decoder()).get("button").toString());
+        assertSame(view, router.next());
+        assertEquals(12L, new GenericDatumReader<GenericRecord>(view).read(null, router.decoder()).get("millis"));
+        // not a Click symbol, so only View is left, which ignores the button
+        assertSame(view, router.next());
+        assertEquals("No schema takes OBJECT", assertThrows(AvroTypeException.class, router::next).getMessage());
+        
+        AutoJsonRouter both = new AutoJsonRouter(List.of(view, click)).configure("""
+            {"url":"a","button":"LEFT","millis":5}""");
+        assertEquals("Ambiguity: View, Click: OBJECT", assertThrows(AvroTypeException.class, both::next).getMessage());
+        
+        // required fields are looked up by alias too, and {t:v} by t
+        Schema visit = new Schema.Parser().parse("""
+            {
+              "type": "record",
+              "name": "Visit",
+              "fields": [
+                { "name": "page", "aliases": ["url"], "type": "string" },
+                { "name": "at", "type": "long" }
+              ]
+            }""");
+        AutoJsonRouter indexed = new AutoJsonRouter(List.of(click, view, visit)).configure("""
+            {"url":"a","at":1}
+            {"Visit":{"page":"b","at":2}}
+            {"at":3}
+            """);
+        assertSame(visit, indexed.next());
+        assertEquals("a", new GenericDatumReader<GenericRecord>(visit).read(null, indexed.decoder()).get("page").toString());
+        assertSame(visit, indexed.next());
+        assertEquals(2L, new GenericDatumReader<GenericRecord>(visit).read(null, indexed.decoder()).get("at"));
+        assertEquals("No schema takes OBJECT", assertThrows(AvroTypeException.class, indexed::next).getMessage());
+    }
+    
+    @Test
+    void projectionSkipsUnreadFields() throws Exception {
+        Schema schema = new Schema.Parser().parse("""
+            {
+              "type": "record",
+              "name": "Thing",
+              "fields": [
+                { "name": "size", "type": "int" },
+                { "name": "tags", "type": {"type": "map", "values": {"type": "array", "items": "string"}} },
+                { "name": "desc", "type": ["null", "string"], "default": null }
+              ]
+            }""");
+        Schema projected = new Schema.Parser().parse("""
+            {
+              "type": "record",
+              "name": "Thing",
+              "fields": [
+                { "name": "size", "type": "int" }
+              ]
+            }""");
+        String json = """
+            {"tags":{"a":["x","y"]},"extra":{"b":1},"size":1,"desc":"d"}
+            {"size":2,"tags":"not a map"}""";
+        GenericDatumReader<GenericRecord> datumReader = new GenericDatumReader<>(schema, projected);
+        for (boolean streaming : new boolean[] { false, true }) {
+            AutoJsonDecoder decoder = new AutoJsonDecoder(schema, json).streaming(streaming).projection(projected);
+            assertEquals(1, datumReader.read(null, decoder).get("size"));
+            assertEquals(2, datumReader.read(null, decoder).get("size")); // skipped, so not validated
+        }
+    }
+    
+    @Test
+    void nestedUnionsDecodeInPolynomialTime() throws Exception {
+        // each {"Node":...} is both a record with field Node and a wrapped union branch
+        Schema schema = new Schema.Parser().parse("""
+            {
+              "type": "record",
+              "name": "Node",
+              "fields": [
+                { "name": "Node", "type": ["null", "Node"], "default": null }
+              ]
+            }""");
+        String json = "{\"Node\":".repeat(40) + "null" + "}".repeat(40);
+        GenericDatumReader<GenericRecord> datumReader = new GenericDatumReader<>(schema, schema);
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            GenericRecord tree = datumReader.read(null, new AutoJsonDecoder(schema, json));
+            assertEquals(tree, datumReader.read(null, new AutoJsonDecoder(schema, json).streaming(true)));
+        });
+    }
+    
+    @Test
+    void stringsAndBytesFillReusedObjects() throws Exception {
+        Schema schema = new Schema.Parser().parse("""
+            {
+              "type": "record",
+              "name": "Thing",
+              "fields": [
+                { "name": "name", "type": "string" },
+                { "name": "blob", "type": "bytes" },
+                { "name": "code", "type": {"type": "fixed", "name": "Code", "size": 2} }
+              ]
+            }""");
+        String json = """
+            {"name":"caf\\u00e9 \\ud83c\\udf75","blob":"\\u00ff\\u0001","code":"ab"}
+            {"name":"tea","blob":"x","code":"cd"}""";
+        GenericDatumReader<GenericRecord> datumReader = new GenericDatumReader<>(schema, schema);
+        for (boolean streaming : new boolean[] { false, true }) {
+            AutoJsonDecoder decoder = new AutoJsonDecoder(schema, json).streaming(streaming);
+            GenericRecord first = datumReader.read(null, decoder);
+            assertEquals("caf\u00e9 \ud83c\udf75", first.get("name").toString());
+            assertEquals(ByteBuffer.wrap(new byte[] { (byte) 0xff, 1 }), first.get("blob"));
+            Object name = first.get("name");
+            Object blob = first.get("blob");
+            Object code = first.get("code");
+            GenericRecord second = datumReader.read(first, decoder);
+            assertSame(name, second.get("name"));
+            assertSame(blob, second.get("blob"));
+            assertSame(code, second.get("code"));
+            assertEquals("tea", second.get("name").toString());
+            assertEquals(ByteBuffer.wrap(new byte[] { 'x' }), second.get("blob"));
+            assertEquals("cd", new String(((GenericData.Fixed) second.get("code")).bytes(), StandardCharsets.ISO_8859_1));
+            
+            // as String#getBytes(ISO_8859_1) has it: a surrogate pair is a single '?', fixed sizes count bytes
+            GenericRecord third = datumReader.read(null, new AutoJsonDecoder(schema, """
+                {"name":"","blob":"a\\ud83d\\ude00","code":"\\ud83d\\ude00\\u0100"}""").streaming(streaming));
+            assertEquals(ByteBuffer.wrap("a\ud83d\ude00".getBytes(StandardCharsets.ISO_8859_1)), third.get("blob"));
+            assertArrayEquals("??".getBytes(StandardCharsets.ISO_8859_1), ((GenericData.Fixed) third.get("code")).bytes());
+        }
+    }
+    
+    @Test
+    void factoryReusesDecoders() throws Exception {
+        Schema schema = new Schema.Parser().parse("""
+            {
+              "type": "record",
+              "name": "Thing",
+              "fields": [
+                { "name": "size", "type": ["null", "int"] }
+              ]
+            }""");
+        AutoJsonDecoderFactory factory = AutoJsonDecoderFactory.get();
+        GenericDatumReader<GenericRecord> datumReader = new GenericDatumReader<>(schema, schema);
+        AutoJsonDecoder decoder = factory.autoJsonDecoder(schema, "{\"size\":1}").streaming(true);
+        assertEquals(1, datumReader.read(null, decoder).get("size"));
+        
+        assertSame(decoder, factory.autoJsonDecoder(schema, "{\"size\":2}".getBytes(StandardCharsets.UTF_8), decoder));
+        assertEquals(2, datumReader.read(null, decoder).get("size"));
+        assertSame(decoder, decoder.configure(new ByteArrayInputStream("{\"size\":3}".getBytes(StandardCharsets.UTF_8))));
+        assertEquals(3, datumReader.read(null, decoder).get("size"));
+        
+        AutoJsonDecoder pooled = factory.pooledDecoder(schema, "{\"size\":4}");
+        assertEquals(4, datumReader.read(null, pooled).get("size"));
+        assertSame(pooled, factory.pooledDecoder(schema, "{\"size\":null}"));
+        assertEquals(null, datumReader.read(null, pooled).get("size"));
+        
+        // whoever used the pooled decoder last, it comes back with default options
+        Schema noSize = new Schema.Parser().parse("""
+            {"type": "record", "name": "Thing", "fields": []}""");
+        DecodingMetrics metrics = new DecodingMetrics();
+        pooled.projection(noSize).metrics(metrics).breakAmbiguity(true).streaming(true).maxDepth(1);
+        assertSame(pooled, factory.pooledDecoder(schema, "{\"size\":{\"int\":5}}"));
+        assertEquals(5, datumReader.read(null, pooled).get("size"));
+        assertEquals(0, metrics.records());
+        assertFalse(pooled.streaming);
+    }
+    
+    @Test
+    void parallelReaderKeepsOrderAndReportsErrors() throws Exception {
+        Schema schema = new Schema.Parser().parse("""
+            {
+              "type": "record",
+              "name": "Thing",
+              "fields": [
+                { "name": "size", "type": "int" },
+                { "name": "desc", "type": ["null", "string"], "default": null }
+              ]
+            }""");
+        StringBuilder json = new StringBuilder();
+        for (int i = 1; i <= 1000; i++) {
+            json.append(i == 500 ? "{\"size\":\"x\"}" : i == 700 ? "" : "{\"size\":" + i + ",\"desc\":\"" + "d".repeat(i % 100) + "\"}")
+                .append('\n');
+        }
+        for (boolean streaming : new boolean[] { false, true }) {
+            AutoJsonParallelReader<GenericRecord> reader = new AutoJsonParallelReader<GenericRecord>(
+                schema, () -> new GenericDatumReader<>(schema))
+                .chunkSize(64)
+                .maxChunksInFlight(4)
+                .decoderOptions(decoder -> decoder.streaming(streaming));
+            List<AutoJsonResult<GenericRecord>> results =
+                reader.read(new ByteArrayInputStream(json.toString().getBytes(StandardCharsets.UTF_8))).toList();
+            assertEquals(999, results.size()); // without the blank line
+            for (AutoJsonResult<GenericRecord> result : results) {
+                if (result.line() == 500) {
+                    assertInstanceOf(AvroTypeException.class, result.error());
+                } else {
+                    assertEquals((int) result.line(), result.datum().get("size"));
+                }
+            }
+        }
+        
+        // a line is a single datum; the rest of it isn't dropped silently
+        AutoJsonParallelReader<GenericRecord> reader = new AutoJsonParallelReader<>(schema, () -> new GenericDatumReader<>(schema));
+        List<AutoJsonResult<GenericRecord>> results = reader.read(new ByteArrayInputStream(
+            "{\"size\":1}\n{\"size\":2} {\"size\":3}\n{\"size\":4} x\n".getBytes(StandardCharsets.UTF_8))).toList();
+        assertEquals(1, results.get(0).datum().get("size"));
+        assertEquals("Expected a single json value per line", results.get(1).error().getMessage());
+        assertInstanceOf(IOException.class, results.get(2).error());
+        
+        // options set between reads apply to the decoders of threads that read already
+        DecodingMetrics metrics = new DecodingMetrics();
+        reader.executor(Runnable::run);
+        assertEquals(1, reader.read(new ByteArrayInputStream("{\"size\":1}\n".getBytes(StandardCharsets.UTF_8))).count());
+        reader.decoderOptions(decoder -> decoder.metrics(metrics));
+        assertEquals(2, reader.read(new ByteArrayInputStream("{\"size\":1}\n{\"size\":2}\n".getBytes(StandardCharsets.UTF_8))).count());
+        assertEquals(2, metrics.records());
+        
+        // a datum without leaves reads no json, its line is still a single value
+        Schema nothing = Schema.create(Schema.Type.NULL);
+        List<AutoJsonResult<Object>> nulls = new AutoJsonParallelReader<>(nothing, () -> new GenericDatumReader<>(nothing))
+            .read(new ByteArrayInputStream("null\nnull\nnull null\n".getBytes(StandardCharsets.UTF_8))).toList();
+        assertNull(nulls.get(0).error());
+        assertNull(nulls.get(1).error());
+        assertEquals("Expected a single json value per line", nulls.get(2).error().getMessage());
+        assertThrows(IllegalArgumentException.class, () -> reader.chunkSize(0));
+        assertThrows(IllegalArgumentException.class, () -> reader.maxChunksInFlight(0));
+    }
+    
+    @Test
+    void mappedFileInput(@TempDir Path dir) throws Exception {
+        Schema schema = new Schema.Parser().parse("""
+            {
+              "type": "record",
+              "name": "Thing",
+              "fields": [
+                { "name": "size", "type": "int" }
+              ]
+            }""");
+        Path file = dir.resolve("things.json");
+        String json = "{\"size\":1}\n{\"size\":2}\n{\"size\":3}\n";
+        Files.writeString(file, json);
+        // windows cut at line ends, chunks cut within them: slices of the mapping
+        MappedFile mapped = new MappedFile(file, 15);
+        StringBuilder chunks = new StringBuilder();
+        for (ByteBuffer chunk; (chunk = mapped.nextChunk(4)) != null; ) {
+            assertTrue(chunk.isDirect());
+            chunks.append(StandardCharsets.UTF_8.decode(chunk));
+        }
+        assertEquals(json, chunks.toString());
+        // lines longer than a window are copied
+        mapped = new MappedFile(file, 7);
+        chunks.setLength(0);
+        for (ByteBuffer chunk; (chunk = mapped.nextChunk(4)) != null; ) {
+            chunks.append(StandardCharsets.UTF_8.decode(chunk));
+        }
+        assertEquals(json, chunks.toString());
+        
+        // the parser is fed a window at a time, tokens may straddle them
+        GenericDatumReader<GenericRecord> datumReader = new GenericDatumReader<>(schema, schema);
+        AutoJsonDecoder decoder = AutoJsonDecoderFactory.get().autoJsonDecoder(schema, file)
+            .configure(new MappedFile(file, 7).parser(AutoJsonDecoderFactory.get().mapper.getFactory()));
+        for (int i = 1; i <= 3; i++) {
+            assertEquals(i, datumReader.read(null, decoder).get("size"));
+        }
+        for (boolean streaming : new boolean[] {false, true}) {
+            decoder = AutoJsonDecoderFactory.get().autoJsonDecoder(schema, file).streaming(streaming);
+            for (int i = 1; i <= 3; i++) {
+                assertEquals(i, datumReader.read(null, decoder).get("size"));
+            }
+            assertThrows(EOFException.class, decoder::readInt);
+        }
+        AutoJsonParallelReader<GenericRecord> reader = new AutoJsonParallelReader<GenericRecord>(
+            schema, () -> new GenericDatumReader<>(schema)).chunkSize(4);
+        assertEquals(List.of(1, 2, 3), reader.read(file).map(result -> result.datum().get("size")).toList());
+    }
+    
+    @Test
+    void metricsCountTrialsPerField() throws Exception {
+        Schema schema = new Schema.Parser().parse("""
+            {
+              "type": "record",
+              "name": "Thing",
+              "namespace": "ns",
+              "fields": [
+                { "name": "size", "type": ["null", "int", "string"] },
+                { "name": "note", "type": "string" }
+              ]
+            }""");
+        String json = """
+            {"size":"s","note":"n"}
+            {"size":{"int":1},"note":"n"}""";
+        GenericDatumReader<GenericRecord> datumReader = new GenericDatumReader<>(schema, schema);
+        for (boolean streaming : new boolean[] { false, true }) {
+            DecodingMetrics metrics = new DecodingMetrics();
+            AutoJsonDecoder decoder = new AutoJsonDecoder(schema, json).streaming(streaming).metrics(metrics);
+            datumReader.read(null, decoder);
+            datumReader.read(null, decoder);
+            assertEquals(2, metrics.records());
+            assertEquals(json.length(), metrics.bytes());
+            assertEquals(metrics.branchTrials(), metrics.byPath().get("ns.Thing.size")[DecodingMetrics.BRANCH_TRIALS]);
+            // "s" only tries string; {"int":1} only int, no record/map branch could take it as well
+            assertEquals(2, metrics.branchTrials());
+            assertEquals(0, metrics.byPath().get("ns.Thing.size")[DecodingMetrics.BRANCH_FAILURES]);
+            assertEquals(0, metrics.ambiguityChecks());
+            // each path's own time adds up to the time matching
+            long nanos = 0;
+            for (long[] counters : metrics.byPath().values()) {
+                nanos += counters[DecodingMetrics.NANOS];
+            }
+            assertEquals(metrics.nanos(), nanos);
+            assertTrue(metrics.byPath().get("ns.Thing.size")[DecodingMetrics.NANOS] > 0);
+        }
+        
+        // {"R":5} is tried as {t:v} once R matched, which is one ambiguity check;
+        // a union branch that can't take the json type isn't tried, whatever the mode
+        Schema wrapped = new Schema.Parser().parse("""
+            {
+              "type": "record",
+              "name": "Thing",
+              "fields": [
+                { "name": "r", "type": {"type": "record", "name": "R", "fields": [{ "name": "x", "type": "int", "default": 0 }]} },
+                { "name": "parts", "type": ["null", {"type": "array", "items": "int"}] },
+                { "name": "rec", "type": ["null", "R"] },
+                { "name": "bad", "type": ["null", "R"], "default": null }
+              ]
+            }""");
+        for (String json2 : List.of("{\"r\":{\"R\":5},\"parts\":[1,2],\"rec\":{\"x\":1}}", "{\"r\":{},\"parts\":[],\"rec\":null,\"bad\":{\"x\":\"y\"}}")) {
+            long[][] counts = new long[3][];
+            for (int mode = 0; mode < 3; mode++) { // tree, streaming, generic
+                DecodingMetrics metrics = new DecodingMetrics();
+                AutoJsonDecoder decoder = new AutoJsonDecoder(wrapped, json2).streaming(mode == 1).specialized(mode != 2).metrics(metrics);
+                try {
+                    new GenericDatumReader<GenericRecord>(wrapped).read(null, decoder);
+                } catch (AvroTypeException e) {
+                    // the second json fails in all modes
+                }
+                counts[mode] = new long[] { metrics.nodes(), metrics.branchTrials(), metrics.branchFailures(), metrics.ambiguityChecks() };
+            }
+            assertArrayEquals(counts[0], counts[1]);
+            assertArrayEquals(counts[0], counts[2]);
+        }
+        DecodingMetrics metrics = new DecodingMetrics();
+        new GenericDatumReader<GenericRecord>(wrapped).read(null, new AutoJsonDecoder(wrapped, """
+            {"r":{"R":5},"parts":[1,2],"rec":{"x":1}}""").metrics(metrics));
+        assertEquals(1, metrics.ambiguityChecks());
+        assertEquals(2, metrics.branchTrials());
+        assertEquals(0, metrics.branchFailures());
+    }
+    
+    @Test
+    void ambiguitiesAreFoundAheadOfTime() {
+        Schema schema = new Schema.Parser().parse("""
+            {
+              "type": "record",
+              "name": "Thing",
+              "namespace": "ns",
+              "fields": [
+                { "name": "size", "type": ["null", "int", "string"] },
+                { "name": "tags", "type": ["null", { "type": "map", "values": "string" }] },
+                { "name": "label", "type": ["null", {
+                    "type": "record",
+                    "name": "Label",
+                    "fields": [
+                      { "name": "text", "type": "string" },
+                      { "name": "lang", "type": "string", "default": "en" }
+                    ]
+                  }]
+                },
+                { "name": "labels", "type": { "type": "array", "items": "Label" } }
+              ]
+            }""");
+        assertEquals(List.of(
+            "ns.Thing.tags: UNION [null, map] for {t:v} with t in [map, null]"),
+            AutoJsonDecoder.ambiguities(schema));
+        
+        // a record that may be all defaults takes any {t:v}
+        Schema defaults = new Schema.Parser().parse("""
+            {"type": "record", "name": "Label", "fields": [{ "name": "text", "type": "string", "default": "" }]}""");
+        assertEquals(List.of("$: RECORD for {\"Label\":v}"), AutoJsonDecoder.ambiguities(defaults));
+    }
+    
+    @Test
+    void datumReaderBuildsDatumsDirectly() throws Exception {
+        Schema schema = new Schema.Parser().parse("""
+            {
+              "type": "record",
+              "name": "Thing",
+              "fields": [
+                { "name": "size", "type": ["null", "int", "string"] },
+                { "name": "kind", "type": {"type": "enum", "name": "Kind", "symbols": ["A", "B"]}, "default": "A" },
+                { "name": "id", "type": {"type": "fixed", "name": "Id", "size": 2} },
+                { "name": "tags", "type": {"type": "array", "items": {"type": "string", "avro.java.string": "String"}} },
+                { "name": "parts", "type": {"type": "map", "values": "bytes"}, "default": {} },
+                { "name": "at", "type": {"type": "long", "logicalType": "timestamp-millis"}, "default": 0 }
+              ]
+            }""");
+        String json = """
+            {"size":{"int":1},"id":"ab","tags":["x","y"],"parts":{"p":"q"},"at":1000}
+            {"size":"s","kind":"B","id":"cd","tags":["z"]}""";
+        GenericDatumReader<GenericRecord> expected = new GenericDatumReader<>(schema, schema);
+        AutoJsonDatumReader<GenericRecord> actual = new AutoJsonDatumReader<>(schema);
+        AutoJsonDecoder decoder1 = new AutoJsonDecoder(schema, json);
+        AutoJsonDecoder decoder2 = new AutoJsonDecoder(schema, json);
+        GenericRecord reuse = null;
+        for (int i = 0; i < 2; i++) {
+            GenericRecord record = actual.read(reuse, decoder2);
+            assertEquals(expected.read(null, decoder1), record);
+            assertSame(reuse == null ? record : reuse, record);
+            assertInstanceOf(String.class, ((List<?>) record.get("tags")).get(0));
+            reuse = record;
+        }
+        
+        GenericData data = new GenericData();
+        data.addLogicalTypeConversion(new TimeConversions.TimestampMillisConversion());
+        GenericRecord record = new AutoJsonDatumReader<GenericRecord>(schema, data).read(null, new AutoJsonDecoder(schema, json));
+        assertEquals(Instant.ofEpochSecond(1), record.get("at"));
+        
+        assertThrows(IllegalArgumentException.class,
+            () -> actual.read(null, DecoderFactory.get().jsonDecoder(schema, json)));
+    }
+    
+    @Test
+    void encoderOnlyWrapsUnionsWhereNeeded() throws Exception {
+        Schema schema = new Schema.Parser().parse("""
+            {
+              "type": "record",
+              "name": "Thing",
+              "fields": [
+                { "name": "desc", "type": ["null", "string"] },
+                { "name": "size", "type": ["int", "long"] },
+                { "name": "label", "type": ["null", {"type": "record", "name": "Label", "fields": [{ "name": "text", "type": "string" }]}] },
+                { "name": "tags", "type": ["null", {"type": "map", "values": "string"}] }
+              ]
+            }""");
+        GenericRecord label = new GenericData.Record(schema.getField("label").schema().getTypes().get(1));
+        label.put("text", "x");
+        GenericRecord record = new GenericData.Record(schema);
+        record.put("desc", "parsley");
+        record.put("size", 1L);
+        record.put("label", label);
+        record.put("tags", Map.of("a", "b"));
+        GenericRecord record2 = new GenericData.Record(schema);
+        record2.put("size", 2);
+        record2.put("tags", Map.of("null", "b"));
+        
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        AutoJsonEncoder encoder = AutoJsonDecoderFactory.get().autoJsonEncoder(schema, os);
+        GenericDatumWriter<GenericRecord> datumWriter = new GenericDatumWriter<>(schema);
+        datumWriter.write(record, encoder);
+        datumWriter.write(record2, encoder);
+        encoder.flush();
+        String json = os.toString(StandardCharsets.UTF_8);
+        // a single entry map keeps {t:v} if its key is a branch name
+        assertEquals("""
+            {"desc":"parsley","size":{"long":1},"label":{"text":"x"},"tags":{"a":"b"}}
+            {"desc":null,"size":2,"label":null,"tags":{"map":{"null":"b"}}}""", json);
+        
+        GenericDatumReader<GenericRecord> datumReader = new GenericDatumReader<>(schema, schema);
+        AutoJsonDecoder decoder = new AutoJsonDecoder(schema, json);
+        assertEquals(record, datumReader.read(null, decoder));
+        assertEquals(record2, datumReader.read(null, decoder));
+    }
+    
+    @Test
+    void transcoderWritesBinaryWithoutDatums(@TempDir Path dir) throws Exception {
+        Schema schema = new Schema.Parser().parse("""
+            {
+              "type": "record",
+              "name": "Thing",
+              "fields": [
+                { "name": "size", "type": ["null", "long"] },
+                { "name": "tags", "type": {"type": "array", "items": "string"}, "default": [] },
+                { "name": "parts", "type": {"type": "map", "values": "bytes"}, "default": {} }
+              ]
+            }""");
+        String json = """
+            {"size":1,"tags":["a","b"]}
+            {"size":null,"parts":{"p":"q"}}""";
+        
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(expected, null);
+        GenericDatumReader<GenericRecord> datumReader = new GenericDatumReader<>(schema, schema);
+        GenericDatumWriter<GenericRecord> datumWriter = new GenericDatumWriter<>(schema);
+        AutoJsonDecoder decoder = new AutoJsonDecoder(schema, json);
+        datumWriter.write(datumReader.read(null, decoder), encoder);
+        datumWriter.write(datumReader.read(null, decoder), encoder);
+        encoder.flush();
+        
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        AutoJsonTranscoder transcoder = new AutoJsonTranscoder(new AutoJsonDecoder(schema, json));
+        assertEquals(2, transcoder.transcodeAll(EncoderFactory.get().binaryEncoder(actual, null)));
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+        
+        Path file = dir.resolve("things.avro");
+        try (DataFileWriter<GenericRecord> fileWriter = new DataFileWriter<>(datumWriter)) {
+            fileWriter.setCodec(CodecFactory.deflateCodec(1));
+            fileWriter.create(schema, file.toFile());
+            assertEquals(2, new AutoJsonTranscoder(new AutoJsonDecoder(schema, json)).transcodeAll(fileWriter));
+        }
+        try (DataFileReader<GenericRecord> fileReader = new DataFileReader<>(file.toFile(), datumReader)) {
+            assertEquals(1L, fileReader.next().get("size"));
+            assertEquals(ByteBuffer.wrap(new byte[] {'q'}), ((Map<?, ?>) fileReader.next().get("parts")).values().iterator().next());
+        }
+        
+        // no leaves: the datum reader reads no json, and neither does the transcoder
+        for (String leafless : List.of("\"null\"", """
+            {"type": "record", "name": "Nothing", "fields": [{ "name": "fc0", "type": "null" }]}""")) {
+            Schema nothing = new Schema.Parser().parse(leafless);
+            ByteArrayOutputStream datum = new ByteArrayOutputStream();
+            BinaryEncoder datumEncoder = EncoderFactory.get().binaryEncoder(datum, null);
+            new GenericDatumWriter<>(nothing).write(
+                new GenericDatumReader<>(nothing, nothing).read(null, new AutoJsonDecoder(nothing, "3")), datumEncoder);
+            datumEncoder.flush();
+            
+            ByteArrayOutputStream transcoded = new ByteArrayOutputStream();
+            BinaryEncoder transcodedEncoder = EncoderFactory.get().binaryEncoder(transcoded, null);
+            new AutoJsonTranscoder(new AutoJsonDecoder(nothing, "3")).transcode(transcodedEncoder);
+            transcodedEncoder.flush();
+            assertArrayEquals(datum.toByteArray(), transcoded.toByteArray());
+            // a datum per json value, which isn't matched
+            assertEquals(3, new AutoJsonTranscoder(new AutoJsonDecoder(nothing, "{} 3 [1]"))
+                .transcodeAll(EncoderFactory.get().binaryEncoder(new ByteArrayOutputStream(), null)));
+        }
+    }
+    
+    @Test
+    void feederDecodesChunksAsTheyArrive() throws Exception {
+        Schema schema = new Schema.Parser().parse("""
+            {
+              "type": "record",
+              "name": "Thing",
+              "fields": [
+                { "name": "size", "type": ["null", "int"] },
+                { "name": "note", "type": "string", "default": "" }
+              ]
+            }""");
+        byte[] json = """
+            {"size":1,"note":"caf\u00e9"}
+            {"size":"big"}
+            {"size":null} {"size":3}""".getBytes(StandardCharsets.UTF_8);
+        List<AutoJsonResult<GenericRecord>> results = new ArrayList<>();
+        AutoJsonFeeder<GenericRecord> feeder = new AutoJsonFeeder<GenericRecord>(schema, new GenericDatumReader<>(schema))
+            .decoderOptions(decoder -> decoder.streaming(true));
+        ByteBuffer direct = ByteBuffer.allocateDirect(1);
+        for (byte b : json) { // a byte at a time
+            direct.clear();
+            direct.put(b).flip();
+            feeder.feed(direct, results::add);
+            assertFalse(direct.hasRemaining());
+        }
+        assertEquals(4, results.size()); // each as soon as its closing brace arrives
+        feeder.endOfInput(results::add);
+        assertEquals(4, results.size());
+        
+        assertEquals(List.of(1L, 2L, 3L, 3L), results.stream().map(AutoJsonResult::line).toList());
+        assertEquals("caf\u00e9", results.get(0).datum().get("note").toString());
+        assertInstanceOf(AvroTypeException.class, results.get(1).error());
+        assertEquals(3, results.get(3).datum().get("size"));
+        
+        Schema intSchema = Schema.create(Schema.Type.INT);
+        List<AutoJsonResult<Object>> ints = new ArrayList<>();
+        AutoJsonFeeder<Object> numbers = new AutoJsonFeeder<>(intSchema, new GenericDatumReader<>(intSchema));
+        numbers.feed("1 2".getBytes(StandardCharsets.UTF_8), 0, 3, ints::add);
+        assertEquals(1, ints.size()); // 2 could go on
+        numbers.endOfInput(ints::add);
+        assertEquals(List.of(1, 2), ints.stream().map(AutoJsonResult::datum).toList());
+        
+        AutoJsonFeeder<GenericRecord> small = new AutoJsonFeeder<GenericRecord>(schema, new GenericDatumReader<>(schema)).maxDatumSize(8);
+        small.feed(json, 0, 5, results::add);
+        assertThrows(IOException.class, () -> small.feed(json, 5, 5, results::add));
+    }
+    
+    @Test
+    void adaptiveUnionsLearnTheCommonBranch() throws Exception {
+        Schema schema = new Schema.Parser().parse("""
+            {
+              "type": "array",
+              "items": ["null",
+                { "type": "record", "name": "A", "fields": [{ "name": "a", "type": "int" }] },
+                { "type": "record", "name": "B", "fields": [{ "name": "b", "type": "int" }] },
+                { "type": "record", "name": "AB", "fields": [
+                  { "name": "a", "type": "int" },
+                  { "name": "c", "type": "int", "default": 0 }
+                ]}
+              ]
+            }""");
+        String json = """
+            [{"b":1},{"b":2},{"b":3},{"a":4,"c":5},null,{"b":6},{"a":7}]""";
+        GenericDatumReader<Object> reader = new GenericDatumReader<>(schema);
+        Object expected = reader.read(null, new AutoJsonDecoder(schema, json));
+        AutoJsonDecoder decoder = new AutoJsonDecoder(schema, json).adaptive(true);
+        assertEquals(expected, reader.read(null, decoder));
+        // B is predicted from the first item on, yet the objects with an "a" still go to A, before AB;
+        // null is taken by the rules before #12
+        assertEquals(List.of("B", "B", "B", "A", "null", "B", "A"), ((List<?>) expected).stream()
+            .map(item -> item == null ? "null" : ((GenericRecord) item).getSchema().getName()).toList());
+        assertArrayEquals(new long[] {0, 2, 4, 0}, decoder.branchStats().values().iterator().next());
+    }
+    
+    @Test
+    void columnarBatchHoldsTheLeavesOfEachField() throws Exception {
+        Schema schema = new Schema.Parser().parse("""
+            {
+              "type": "record",
+              "name": "Event",
+              "fields": [
+                { "name": "id", "type": "long" },
+                { "name": "user", "type": ["null", "string"], "default": null },
+                { "name": "scores", "type": {"type": "array", "items": "double"} },
+                { "name": "tags", "type": {"type": "map", "values": "int"} },
+                { "name": "value", "type": ["null", "boolean", "string"], "default": null }
+              ]
+            }""");
+        AutoJsonDecoder decoder = new AutoJsonDecoder(schema, """
+            {"id":1,"user":"ann","scores":[0.5,1.5],"tags":{"a":1},"value":true}
+            {"id":2,"scores":[],"tags":{},"value":"x"}
+            {"id":3,"user":"bob","scores":[2],"tags":{"b":2,"c":3}}
+            {"id":"4"}
+            """);
+        ColumnarBatch batch = new ColumnarBatch(schema);
+        assertEquals(List.of("", "id", "user", "scores", "scores[]", "tags", "tags{key}", "tags{}",
+            "value", "value<boolean>", "value<string>"), batch.columns().stream().map(ColumnarBatch.Column::path).toList());
+        assertEquals(2, batch.fill(decoder, 2));
+        assertEquals(1L, batch.column("id").longs()[0]);
+        assertEquals("ann", batch.column("user").string(0));
+        assertTrue(batch.column("user").isNull(1));
+        assertEquals(1.5, batch.column("scores[]").doubles()[1]);
+        assertArrayEquals(new int[] {0, 2, 2}, Arrays.copyOf(batch.column("scores").offsets(), 3));
+        assertEquals("a", batch.column("tags{key}").string(0));
+        assertArrayEquals(new int[] {1, 2}, Arrays.copyOf(batch.column("value").ints(), 2));
+        assertTrue(batch.column("value<boolean>").isTrue(0));
+        assertTrue(batch.column("value<boolean>").isNull(1));
+        assertEquals("x", batch.column("value<string>").string(1));
+        
+        // the buffers are reused, a datum that fails isn't added
+        assertThrows(AvroTypeException.class, () -> batch.fill(decoder, 2));
+        assertEquals(1, batch.rows());
+        assertEquals(3L, batch.column("id").longs()[0]);
+        assertEquals(2, batch.column("tags{}").size());
+        assertTrue(batch.column("value").isNull(0));
+        
+        // branches of the same simple name are told apart by their full names
+        Schema points = new Schema.Parser().parse("""
+            {
+              "type": "record",
+              "name": "Shape",
+              "fields": [
+                { "name": "p", "type": [
+                  {"type": "record", "name": "P", "namespace": "a", "fields": [{ "name": "x", "type": "int" }]},
+                  {"type": "record", "name": "P", "namespace": "b", "fields": [{ "name": "y", "type": "string" }]}
+                ] }
+              ]
+            }""");
+        ColumnarBatch pointBatch = new ColumnarBatch(points);
+        assertEquals(List.of("", "p", "p<a.P>", "p<a.P>.x", "p<b.P>", "p<b.P>.y"),
+            pointBatch.columns().stream().map(ColumnarBatch.Column::path).toList());
+        assertEquals(2, pointBatch.fill(new AutoJsonDecoder(points, "{\"p\":{\"x\":1}} {\"p\":{\"y\":\"s\"}}"), 2));
+        assertEquals(1, pointBatch.column("p<a.P>.x").ints()[0]);
+        assertEquals("s", pointBatch.column("p<b.P>.y").string(1));
+    }
+    
+    @Test
+    void deeplyNestedJsonIsMatchedWithoutTheThreadStack() throws Exception {
+        Schema schema = new Schema.Parser().parse("""
+            {
+              "type": "record",
+              "name": "Link",
+              "fields": [
+                { "name": "v", "type": "int" },
+                { "name": "next", "type": ["null", "Link"], "default": null }
+              ]
+            }""");
+        int depth = 20_000;
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            json.append(i % 2 == 0 ? "{\"v\":" + i + ",\"next\":" : "{\"v\":" + i + ",\"next\":{\"Link\":");
+        }
+        json.append("{\"v\":").append(depth).append("}");
+        for (int i = 0; i < depth; i++) {
+            json.append(i % 2 == 0 ? "}" : "}}");
+        }
+        for (boolean streaming : new boolean[] {false, true}) {
+            FutureTask<Void> task = new FutureTask<>(() -> {
+                AutoJsonDecoder decoder = new AutoJsonDecoder(schema, json.toString()).streaming(streaming).maxDepth(2 * depth);
+                for (int i = 0; i < depth; i++) {
+                    assertEquals(i, decoder.readInt());
+                    assertEquals(1, decoder.readIndex());
+                }
+                assertEquals(depth, decoder.readInt());
+                assertEquals(0, decoder.readIndex());
+                
+                AutoJsonDecoder shallow = new AutoJsonDecoder(schema, json.toString()).streaming(streaming).maxDepth(depth);
+                AvroTypeException e = assertThrows(AvroTypeException.class, shallow::readInt);
+                assertEquals("Json nested deeper than " + depth + " levels, see maxDepth()", e.getMessage());
+                return null;
+            });
+            Thread thread = new Thread(null, task, "small stack", 256 * 1024);
+            thread.start();
+            task.get();
+        }
+    }
+}